@@ -56,6 +56,8 @@ dependencies {
 	jmh("org.ow2.asm:asm:9.4")
 
 	testImplementation("net.jqwik:jqwik:1.7.3")
+	// runs the tests inside the Fabric loader, so that the mixins are applied to the NoiseChunk caches
+	testImplementation("net.fabricmc:fabric-loader-junit:${loader_version}")
 }
 
 base {
@@ -101,6 +103,20 @@ tasks.test {
 	}
 	finalizedBy(tasks.jacocoTestReport)
 }
+// the same tests with fillArray vectorized, the Vector API is still an incubator module in Java 17
+val vectorTest by tasks.registering(Test::class) {
+	testClassesDirs = sourceSets.test.get().output.classesDirs
+	classpath = sourceSets.test.get().runtimeClasspath
+	useJUnitPlatform {
+		includeEngines.add("jqwik")
+	}
+	jvmArgs("--add-modules", "jdk.incubator.vector")
+	systemProperty("worldbytes.compiler.vectorize", "true")
+	shouldRunAfter(tasks.test)
+}
+tasks.check {
+	dependsOn(vectorTest)
+}
 tasks.jacocoTestReport {
 	dependsOn(tasks.test) // tests are required to run before generating the report
 }
@@ -126,6 +142,8 @@ jmh {
 	timeUnit.set("ns")
 	fork.set(2)
 	zip64.set(true)
+	// allocation rates next to the scores
+	profilers.set(listOf("gc"))
 }
 
 publishing {
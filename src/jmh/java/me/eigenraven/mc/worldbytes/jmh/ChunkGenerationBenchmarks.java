@@ -0,0 +1,182 @@
+package me.eigenraven.mc.worldbytes.jmh;
+
+import com.mojang.serialization.Lifecycle;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import me.eigenraven.mc.worldbytes.DensityFunctionCompiler;
+import net.minecraft.CrashReport;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Holder;
+import net.minecraft.core.HolderLookup;
+import net.minecraft.core.MappedRegistry;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.data.registries.VanillaRegistries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.LevelHeightAccessor;
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.biome.Biomes;
+import net.minecraft.world.level.biome.FixedBiomeSource;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.chunk.ProtoChunk;
+import net.minecraft.world.level.chunk.UpgradeData;
+import net.minecraft.world.level.levelgen.Aquifer;
+import net.minecraft.world.level.levelgen.DensityFunctions;
+import net.minecraft.world.level.levelgen.NoiseBasedChunkGenerator;
+import net.minecraft.world.level.levelgen.NoiseChunk;
+import net.minecraft.world.level.levelgen.NoiseGeneratorSettings;
+import net.minecraft.world.level.levelgen.NoiseRouter;
+import net.minecraft.world.level.levelgen.RandomState;
+import net.minecraft.world.level.levelgen.blending.Blender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Fills a grid of ProtoChunks through NoiseBasedChunkGenerator.fillFromNoise without a server, so that the NoiseChunk
+ * interpolators, caches and aquifers take part like in a real world. The score is in chunks per second when run from
+ * the jmh jar, the jmh task overrides the mode with the time per chunk. The gc profiler reports the allocation rate.
+ * fillFromNoise runs the fill on Util.backgroundExecutor, which has to allow as many threads through
+ * {@code -Dmax.bg.threads} for all of them to work at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChunkGenerationBenchmarks {
+    /** The number of chunks along each side of the filled grid */
+    public static final int GRID = 8;
+
+    private static final HolderLookup.Provider registries;
+    private static final MappedRegistry<Biome> biomes;
+
+    static {
+        synchronized (Bootstrap.class) {
+            SharedConstants.tryDetectVersion();
+            SharedConstants.enableDataFixerOptimizations();
+            CrashReport.preload();
+            Bootstrap.bootStrap();
+            Bootstrap.validate();
+        }
+        registries = VanillaRegistries.createLookup();
+        // ProtoChunk wants a registry to create its biome containers from
+        biomes = new MappedRegistry<>(Registries.BIOME, Lifecycle.stable());
+        registries
+                .lookupOrThrow(Registries.BIOME)
+                .listElements()
+                .forEach(biome -> biomes.register(biome.key(), biome.value(), Lifecycle.stable()));
+    }
+
+    @Param({"overworld", "large_biomes", "amplified", "nether", "end"})
+    public String preset;
+
+    @Param({"vanilla", "compiled"})
+    public String router;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"0"})
+    public long seed;
+
+    public NoiseGeneratorSettings settings;
+    public NoiseBasedChunkGenerator generator;
+    public RandomState randomState;
+    public Aquifer.FluidPicker fluidPicker;
+    public LevelHeightAccessor heightAccessor;
+    public ExecutorService executor;
+    public List<ProtoChunk> chunks;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        final ResourceKey<NoiseGeneratorSettings> key =
+                switch (preset) {
+                    case "overworld" -> NoiseGeneratorSettings.OVERWORLD;
+                    case "large_biomes" -> NoiseGeneratorSettings.LARGE_BIOMES;
+                    case "amplified" -> NoiseGeneratorSettings.AMPLIFIED;
+                    case "nether" -> NoiseGeneratorSettings.NETHER;
+                    case "end" -> NoiseGeneratorSettings.END;
+                    default -> throw new IllegalArgumentException(preset);
+                };
+        final Holder<NoiseGeneratorSettings> settingsHolder =
+                registries.lookupOrThrow(Registries.NOISE_SETTINGS).getOrThrow(key);
+        settings = settingsHolder.value();
+        generator = new NoiseBasedChunkGenerator(
+                new FixedBiomeSource(biomes.getHolderOrThrow(Biomes.PLAINS)), settingsHolder);
+        randomState = RandomState.create(settings, registries.lookupOrThrow(Registries.NOISE), seed);
+        if (router.equals("compiled")) {
+            // RandomStateMixin does not apply without the Fabric loader, replace the router like it does
+            for (Field field : RandomState.class.getDeclaredFields()) {
+                if (field.getType() == NoiseRouter.class) {
+                    field.setAccessible(true);
+                    field.set(randomState, DensityFunctionCompiler.compileNoiseRouter(randomState.router()));
+                }
+            }
+        }
+
+        // NoiseBasedChunkGenerator.createFluidPicker
+        final Aquifer.FluidStatus lava = new Aquifer.FluidStatus(-54, Blocks.LAVA.defaultBlockState());
+        final int seaLevel = settings.seaLevel();
+        final Aquifer.FluidStatus sea = new Aquifer.FluidStatus(seaLevel, settings.defaultFluid());
+        fluidPicker = (x, y, z) -> y < Math.min(-54, seaLevel) ? lava : sea;
+        heightAccessor = new LevelHeightAccessor() {
+            @Override
+            public int getHeight() {
+                return settings.noiseSettings().height();
+            }
+
+            @Override
+            public int getMinBuildHeight() {
+                return settings.noiseSettings().minY();
+            }
+        };
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @Setup(Level.Invocation)
+    public void createChunks() {
+        chunks = new ArrayList<>(GRID * GRID);
+        for (int x = 0; x < GRID; x++) {
+            for (int z = 0; z < GRID; z++) {
+                chunks.add(new ProtoChunk(new ChunkPos(x, z), UpgradeData.EMPTY, heightAccessor, biomes, null));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private void fill(ProtoChunk chunk) {
+        // without structures the beardifier is the marker, which lets fillFromNoise run without a StructureManager
+        chunk.getOrCreateNoiseChunk(c -> NoiseChunk.forChunk(
+                c, randomState, DensityFunctions.BeardifierMarker.INSTANCE, settings, fluidPicker, Blender.empty()));
+        generator.fillFromNoise(Runnable::run, Blender.empty(), randomState, null, chunk).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GRID * GRID)
+    public void fillFromNoise() throws Exception {
+        final List<Future<?>> futures = new ArrayList<>(chunks.size());
+        for (ProtoChunk chunk : chunks) {
+            futures.add(executor.submit(() -> fill(chunk)));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package me.eigenraven.mc.worldbytes.jmh;
+
+import java.util.Random;
+import me.eigenraven.mc.worldbytes.DensityFunctionCompiler;
+import net.minecraft.CrashReport;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.HolderLookup;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.data.registries.VanillaRegistries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.levelgen.DensityFunction;
+import net.minecraft.world.level.levelgen.NoiseGeneratorSettings;
+import net.minecraft.world.level.levelgen.NoiseRouter;
+import net.minecraft.world.level.levelgen.NoiseSettings;
+import net.minecraft.world.level.levelgen.RandomState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Evaluates the outputs of the vanilla noise routers built from the bootstrapped registries, as created by RandomState
+ * for a world, against the same routers compiled. The scores are per evaluated point for compute and per filled column
+ * for fillArray.
+ */
+@State(Scope.Benchmark)
+public class NoiseRouterBenchmarks {
+    /** The number of points evaluated per compute invocation */
+    public static final int POINTS = 1024;
+    /** The number of columns filled per fillArray invocation */
+    public static final int COLUMNS = 64;
+    /** Players spend most of their time within this distance of spawn */
+    public static final int SPREAD = 10000;
+
+    private static final HolderLookup.Provider registries;
+
+    static {
+        synchronized (Bootstrap.class) {
+            SharedConstants.tryDetectVersion();
+            SharedConstants.enableDataFixerOptimizations();
+            CrashReport.preload();
+            Bootstrap.bootStrap();
+            Bootstrap.validate();
+        }
+        registries = VanillaRegistries.createLookup();
+    }
+
+    @Param({"overworld", "large_biomes", "amplified", "nether", "end"})
+    public String preset;
+
+    @Param({"0", "1234567890", "-4172144997902289642"})
+    public long seed;
+
+    @Param({"finalDensity", "depth", "temperature", "vegetation", "continents", "erosion", "ridges"})
+    public String output;
+
+    public DensityFunction vanilla, compiled;
+    public DensityFunction.FunctionContext[] points;
+    public ColumnProvider[] columns;
+    public double[] column;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final ResourceKey<NoiseGeneratorSettings> key =
+                switch (preset) {
+                    case "overworld" -> NoiseGeneratorSettings.OVERWORLD;
+                    case "large_biomes" -> NoiseGeneratorSettings.LARGE_BIOMES;
+                    case "amplified" -> NoiseGeneratorSettings.AMPLIFIED;
+                    case "nether" -> NoiseGeneratorSettings.NETHER;
+                    case "end" -> NoiseGeneratorSettings.END;
+                    default -> throw new IllegalArgumentException(preset);
+                };
+        final NoiseGeneratorSettings settings = registries
+                .lookupOrThrow(Registries.NOISE_SETTINGS)
+                .getOrThrow(key)
+                .value();
+        final RandomState randomState =
+                RandomState.create(settings, registries.lookupOrThrow(Registries.NOISE), seed);
+        final NoiseRouter router = randomState.router();
+        vanilla = output(router);
+        compiled = output(DensityFunctionCompiler.compileNoiseRouter(router));
+
+        // block positions spread around spawn over the generated height, and columns of cell corners like NoiseChunk
+        final NoiseSettings noiseSettings = settings.noiseSettings();
+        final Random random = new Random(seed);
+        points = new DensityFunction.FunctionContext[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            points[i] = new DensityFunction.SinglePointContext(
+                    random.nextInt(-SPREAD, SPREAD),
+                    noiseSettings.minY() + random.nextInt(noiseSettings.height()),
+                    random.nextInt(-SPREAD, SPREAD));
+        }
+        final int cellWidth = noiseSettings.getCellWidth();
+        columns = new ColumnProvider[COLUMNS];
+        for (int i = 0; i < COLUMNS; i++) {
+            columns[i] = new ColumnProvider(
+                    Math.floorDiv(random.nextInt(-SPREAD, SPREAD), cellWidth) * cellWidth,
+                    Math.floorDiv(random.nextInt(-SPREAD, SPREAD), cellWidth) * cellWidth,
+                    noiseSettings.minY(),
+                    noiseSettings.getCellHeight());
+        }
+        column = new double[noiseSettings.height() / noiseSettings.getCellHeight() + 1];
+    }
+
+    private DensityFunction output(NoiseRouter router) {
+        return switch (output) {
+            case "finalDensity" -> router.finalDensity();
+            case "depth" -> router.depth();
+            case "temperature" -> router.temperature();
+            case "vegetation" -> router.vegetation();
+            case "continents" -> router.continents();
+            case "erosion" -> router.erosion();
+            case "ridges" -> router.ridges();
+            default -> throw new IllegalArgumentException(output);
+        };
+    }
+
+    /** The cell corners of a column from the bottom of the world up, in the order NoiseChunk fills them */
+    public record ColumnProvider(int x, int z, int minY, int cellHeight) implements DensityFunction.ContextProvider {
+        @Override
+        public DensityFunction.FunctionContext forIndex(int index) {
+            return new DensityFunction.SinglePointContext(x, minY + index * cellHeight, z);
+        }
+
+        @Override
+        public void fillAllDirectly(double[] values, DensityFunction df) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = df.compute(forIndex(i));
+            }
+        }
+    }
+
+    private void computeAll(DensityFunction df, Blackhole bh) {
+        for (DensityFunction.FunctionContext point : points) {
+            bh.consume(df.compute(point));
+        }
+    }
+
+    private void fillAll(DensityFunction df, Blackhole bh) {
+        for (ColumnProvider provider : columns) {
+            df.fillArray(column, provider);
+            bh.consume(column);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void compute$vanilla(Blackhole bh) {
+        computeAll(vanilla, bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void compute$compiled(Blackhole bh) {
+        computeAll(compiled, bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLUMNS)
+    public void fillArray$vanilla(Blackhole bh) {
+        fillAll(vanilla, bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLUMNS)
+    public void fillArray$compiled(Blackhole bh) {
+        fillAll(compiled, bh);
+    }
+}
@@ -0,0 +1,125 @@
+package me.eigenraven.mc.worldbytes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import net.minecraft.world.level.levelgen.DensityFunction;
+
+/**
+ * Compiled functions by their source tree, shared by all compilations of one noise router. The cache is dropped
+ * together with the router's compilation, so it never keeps noises or trees of unloaded worlds alive; generated classes
+ * are shared across caches by DensityFunctionCompiler.
+ */
+public final class CompilationCache {
+    /** Default maximum number of entries, least recently used entries are evicted beyond it */
+    public static final int DEFAULT_MAX_SIZE = Integer.getInteger("worldbytes.compiler.cacheSize", 4096);
+
+    private final int maxSize;
+    /** Completed or in-flight compilations, so that concurrent callers compile equal trees only once */
+    private final LinkedHashMap<DensityFunction, CompletableFuture<DensityFunction>> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long inFlightWaits = 0;
+
+    public CompilationCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public CompilationCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive, got " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DensityFunction, CompletableFuture<DensityFunction>> eldest) {
+                if (size() > CompilationCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled version of the function, compiling it on the calling thread unless another thread already
+     * started to, in which case it waits for that compilation. Unlike ConcurrentHashMap.computeIfAbsent, the compiler
+     * may recursively use this cache for the subtrees.
+     */
+    public DensityFunction computeIfAbsent(
+            DensityFunction source, Function<DensityFunction, DensityFunction> compiler) {
+        final CompletableFuture<DensityFunction> future;
+        final boolean owner;
+        synchronized (this) {
+            final CompletableFuture<DensityFunction> existing = entries.get(source);
+            if (existing != null) {
+                hits++;
+                if (!existing.isDone()) {
+                    inFlightWaits++;
+                }
+                future = existing;
+                owner = false;
+            } else {
+                misses++;
+                future = new CompletableFuture<>();
+                entries.put(source, future);
+                owner = true;
+            }
+        }
+        if (!owner) {
+            // Trees are acyclic, so the owner never waits on a compilation this thread is running
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+        try {
+            final DensityFunction compiled = compiler.apply(source);
+            future.complete(compiled);
+            return compiled;
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                entries.remove(source, future);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /** @return How many hits had to wait for a compilation running on another thread */
+    public synchronized long inFlightWaits() {
+        return inFlightWaits;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CompilationCache{hits=" + hits + ", misses=" + misses + ", inFlightWaits=" + inFlightWaits
+                + ", evictions=" + evictions + ", size=" + size() + "/" + maxSize + "}";
+    }
+}
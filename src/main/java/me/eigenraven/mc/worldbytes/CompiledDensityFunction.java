@@ -39,6 +39,11 @@ public abstract class CompiledDensityFunction implements DensityFunction {
         return compiledCompute(context);
     }
 
+    /** Computes the value at a block position, for callers that have no context of their own */
+    public double computeAt(int blockX, int blockY, int blockZ) {
+        return compiledCompute(new SinglePointContext(blockX, blockY, blockZ));
+    }
+
     @Override
     public void fillArray(double[] vals, ContextProvider contextProvider) {
         compiledFillArray(vals, contextProvider);
@@ -75,15 +80,17 @@ public abstract class CompiledDensityFunction implements DensityFunction {
     }
 
     public DensityFunction compiledMapAll(Visitor visitor) {
-
+        // Stored functions are mapped recursively like vanilla children, so NoiseChunk can replace nested markers
         DensityFunction[] newFunctions =
-                Arrays.stream(functions).map(visitor::apply).toArray(DensityFunction[]::new);
+                Arrays.stream(functions).map(fn -> fn.mapAll(visitor)).toArray(DensityFunction[]::new);
         NoiseHolder[] newNoises = Arrays.copyOf(noises, noises.length);
+        final CompiledDensityFunction mapped;
         try {
-            return (CompiledDensityFunction) this.constructor.invokeExact(original, newFunctions, newNoises);
+            mapped = (CompiledDensityFunction) this.constructor.invokeExact(original, newFunctions, newNoises);
         } catch (Throwable e) {
             throw new RuntimeException(e);
         }
+        return visitor.apply(mapped);
     }
 
     public double compiledMinValue() {
@@ -5,27 +5,53 @@ import static org.objectweb.asm.Opcodes.*;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.invoke.MethodHandles;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.atomic.AtomicLong;
-import net.minecraft.core.Holder;
-import net.minecraft.util.CubicSpline;
+import me.eigenraven.mc.worldbytes.ir.IrBuilder;
+import me.eigenraven.mc.worldbytes.ir.Node;
+import me.eigenraven.mc.worldbytes.ir.PassManager;
+import me.eigenraven.mc.worldbytes.ir.Range;
+import me.eigenraven.mc.worldbytes.ir.RangeAnalysis;
+import me.eigenraven.mc.worldbytes.ir.SplineValue;
 import net.minecraft.world.level.levelgen.DensityFunction;
 import net.minecraft.world.level.levelgen.DensityFunctions;
+import net.minecraft.world.level.levelgen.NoiseChunk;
 import net.minecraft.world.level.levelgen.NoiseRouter;
+import net.minecraft.world.level.levelgen.synth.BlendedNoise;
+import net.minecraft.world.level.levelgen.synth.ImprovedNoise;
+import net.minecraft.world.level.levelgen.synth.NormalNoise;
+import net.minecraft.world.level.levelgen.synth.PerlinNoise;
 import org.apache.commons.io.IOUtils;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.util.CheckClassAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,17 +68,93 @@ public final class DensityFunctionCompiler {
     private static final Type tUtils = Type.getType(DensityFunctionUtils.class);
     private static final Type tDF = Type.getType(DensityFunction.class);
     private static final Type tDFArr = Type.getType(DensityFunction[].class);
+    private static final Type tDoubleArr = Type.getType(double[].class);
     private static final Type tCDF = Type.getType(CompiledDensityFunction.class);
     private static final Type tNoiseHolder = Type.getType(DensityFunction.NoiseHolder.class);
     private static final Type tNoiseHolderArr = Type.getType(DensityFunction.NoiseHolder[].class);
     private static final Type tFunctionContext = Type.getType(DensityFunction.FunctionContext.class);
     private static final Type tComputeMethod = Type.getMethodType(Type.DOUBLE_TYPE, tDF, tFunctionContext);
-    private static final Type tGetFctxCoordAsDoubleMethod = Type.getMethodType(Type.DOUBLE_TYPE, tFunctionContext);
+    private static final Type tGetFctxCoordMethod = Type.getMethodType(Type.INT_TYPE, tFunctionContext);
+    private static final Type tChunkPosKeyMethod = Type.getMethodType(Type.LONG_TYPE, Type.INT_TYPE, Type.INT_TYPE);
     private static final Type tGetNoiseValueMethod =
             Type.getMethodType(Type.DOUBLE_TYPE, tNoiseHolder, Type.DOUBLE_TYPE, Type.DOUBLE_TYPE, Type.DOUBLE_TYPE);
+    private static final Type tForIndexMethod = Type.getMethodType(
+            tFunctionContext, Type.getType(DensityFunction.ContextProvider.class), Type.INT_TYPE);
+    private static final Type tFlatNoise = Type.getType(FlatNoise.class);
+    private static final Type tGetFlatNoiseMethod = Type.getMethodType(tFlatNoise, tNoiseHolder);
+    private static final Type tSampleFlatOctaveMethod =
+            Type.getMethodType(Type.DOUBLE_TYPE, Type.INT_TYPE, Type.DOUBLE_TYPE, Type.DOUBLE_TYPE, Type.DOUBLE_TYPE);
+    private static final Type tEndIslands = Type.getType(EndIslands.class);
+    private static final Type tGetEndIslandsMethod = Type.getMethodType(tEndIslands, tDF);
+    private static final Type tBlendedNoise = Type.getType(BlendedNoise.class);
+    private static final Type tAsBlendedNoiseMethod = Type.getMethodType(
+            tBlendedNoise,
+            tDF,
+            Type.DOUBLE_TYPE,
+            Type.DOUBLE_TYPE,
+            Type.DOUBLE_TYPE,
+            Type.DOUBLE_TYPE,
+            Type.DOUBLE_TYPE);
+    private static final Type tImprovedNoise = Type.getType(ImprovedNoise.class);
+    private static final Type tGetBlendedNoiseOctaveMethod =
+            Type.getMethodType(tImprovedNoise, tBlendedNoise, Type.INT_TYPE, Type.INT_TYPE);
+    private static final Type tSampleOctaveMethod = Type.getMethodType(
+            Type.DOUBLE_TYPE,
+            tImprovedNoise,
+            Type.DOUBLE_TYPE,
+            Type.DOUBLE_TYPE,
+            Type.DOUBLE_TYPE,
+            Type.DOUBLE_TYPE,
+            Type.DOUBLE_TYPE);
+    private static final Type tSplineMethod = Type.getMethodType(Type.FLOAT_TYPE, tFunctionContext);
+    private static final Type tMarkerMethod = Type.getMethodType(Type.DOUBLE_TYPE, tFunctionContext);
+    private static final Type tMarkerModeMethod = Type.getMethodType(Type.INT_TYPE, tDF, Type.INT_TYPE);
+    private static final Type tNoiseChunk = Type.getType(NoiseChunk.class);
+    private static final Type tNoiseInterpolator = Type.getType(NoiseChunk.NoiseInterpolator.class);
+    private static final Type tCache2D = Type.getType(NoiseChunk.Cache2D.class);
+    private static final Type tCacheOnce = Type.getType(NoiseChunk.CacheOnce.class);
+    private static final Type tMarkerArrayMethod =
+            Type.getMethodType(Type.DOUBLE_TYPE, tFunctionContext, Type.INT_TYPE, Type.INT_TYPE);
+    private static final Type tFlatCacheValues = Type.getType(double[][].class);
+    private static final Type tCellCacheValues = Type.getType(double[].class);
+    // The incubating Vector API is referenced by name, the module is only present with --add-modules
+    private static final Type tDoubleVector = Type.getObjectType("jdk/incubator/vector/DoubleVector");
+    private static final Type tVector = Type.getObjectType("jdk/incubator/vector/Vector");
+    private static final Type tVectorMask = Type.getObjectType("jdk/incubator/vector/VectorMask");
+    private static final Type tVectorSpecies = Type.getObjectType("jdk/incubator/vector/VectorSpecies");
+    private static final Type tVectorOperators = Type.getObjectType("jdk/incubator/vector/VectorOperators");
+    private static final Type tVectorComparison = Type.getObjectType("jdk/incubator/vector/VectorOperators$Comparison");
+    private static final Type tFillNoiseValuesMethod =
+            Type.getMethodType(Type.VOID_TYPE, tFlatNoise, tDoubleArr, tDoubleArr, tDoubleArr, tDoubleArr);
+    private static final Type tFillArrayMethod =
+            Type.getMethodType(Type.VOID_TYPE, tDoubleArr, Type.getType(DensityFunction.ContextProvider.class));
     private static final Type tBlendDensityMethod =
             Type.getMethodType(Type.DOUBLE_TYPE, Type.DOUBLE_TYPE, tFunctionContext);
     private static final boolean debugWrite = Boolean.getBoolean("worldbytes.debug.writeClasses");
+    /** Unrolls the NormalNoise octave loops into the generated code instead of calling NoiseHolder.getValue */
+    private static final boolean inlineNoise =
+            Boolean.parseBoolean(System.getProperty("worldbytes.compiler.inlineNoise", "true"));
+    /** Computes the subtrees that do not depend on Y once per column in fillArray, instead of once per cell */
+    private static final boolean hoistColumns =
+            Boolean.parseBoolean(System.getProperty("worldbytes.compiler.hoistColumns", "true"));
+    /**
+     * The estimated bytecode size above which subtrees are moved into methods of their own, HotSpot does not JIT
+     * compile methods of more than 8000 bytes
+     */
+    private static final int methodSizeLimit = Integer.getInteger("worldbytes.compiler.methodSizeLimit", 5000);
+    /** Samples the noises filled as whole arrays in fillArray with the batched kernel, one octave at a time */
+    private static final boolean batchNoise =
+            Boolean.parseBoolean(System.getProperty("worldbytes.compiler.batchNoise", "true"));
+    /**
+     * Evaluates the arithmetic at the top of the tree lane-wise with the Vector API in fillArray, the JVM needs to be
+     * started with --add-modules jdk.incubator.vector
+     */
+    private static final boolean vectorize =
+            Boolean.parseBoolean(System.getProperty("worldbytes.compiler.vectorize", "false"))
+                    && isVectorApiAvailable();
+    /** Optimizations applied to the expression tree of every function before generating its code */
+    private static final PassManager passManager = PassManager.defaultPipeline();
+    private static final double NORMAL_NOISE_INPUT_FACTOR = DensityFunctionUtils.NORMAL_NOISE_INPUT_FACTOR;
 
     static {
         final Class<CompiledDensityFunctionTemplate> kTemplateClass = CompiledDensityFunctionTemplate.class;
@@ -66,11 +168,51 @@ public final class DensityFunctionCompiler {
         }
     }
 
-    private static final ConcurrentHashMap<DensityFunction, DensityFunction> compilationCache =
-            new ConcurrentHashMap<>();
+    /**
+     * Defines generated classes as hidden classes, which are unloaded once no compiled function of them is left instead
+     * of staying in the mod class loader forever
+     */
+    private static final boolean hiddenClasses =
+            Boolean.parseBoolean(System.getProperty("worldbytes.compiler.hiddenClasses", "true"));
 
-    static final AtomicLong reusedCalls = new AtomicLong();
-    static final AtomicLong totalCalls = new AtomicLong();
+    /**
+     * Starts the router on the vanilla functions and compiles each output in the background once it is used often
+     * enough, see {@link TieredDensityFunction}
+     */
+    private static final boolean tieredCompilation = Boolean.getBoolean("worldbytes.compiler.tiered");
+
+    /** Shares the subtrees repeated across router outputs between them, see {@link RouterFusion} */
+    private static final boolean fusedRouter = Boolean.getBoolean("worldbytes.compiler.fusedRouter");
+
+    /** Number of threads compiling the router outputs in parallel, 1 compiles them on the calling thread */
+    private static final int compilerThreads = Integer.getInteger(
+            "worldbytes.compiler.threads", Runtime.getRuntime().availableProcessors());
+
+    /** Lazily started, so that the threads only exist once a router is compiled in parallel */
+    private static final class CompilerPool {
+        static final ForkJoinPool POOL = new ForkJoinPool(
+                compilerThreads,
+                pool -> {
+                    final ForkJoinWorkerThread thread =
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("WorldBytes-Compiler-" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                null,
+                false);
+    }
+
+    /** Generated classes by their shape, reused across seeds and dimensions while any instance is alive */
+    private static final ConcurrentHashMap<ClassShape, ShapeClassReference> classesByShape = new ConcurrentHashMap<>();
+
+    private static final ReferenceQueue<Class<? extends CompiledDensityFunction>> unloadedClassQueue =
+            new ReferenceQueue<>();
+
+    static final AtomicLong reusedClasses = new AtomicLong();
+    static final AtomicLong unloadedClasses = new AtomicLong();
+    /** Class file bytes of the unloaded classes, an estimate of the reclaimed metaspace */
+    static final AtomicLong unloadedClassBytes = new AtomicLong();
 
     private static boolean shouldKeepFunctionType(DensityFunction df) {
         return df instanceof CompiledDensityFunction
@@ -80,80 +222,90 @@ public final class DensityFunctionCompiler {
     }
 
     public static NoiseRouter compileNoiseRouter(NoiseRouter raw) {
-        return new NoiseRouter(
-                DensityFunctionCompiler.compile(raw.barrierNoise()),
-                DensityFunctionCompiler.compile(raw.fluidLevelFloodednessNoise()),
-                DensityFunctionCompiler.compile(raw.fluidLevelSpreadNoise()),
-                DensityFunctionCompiler.compile(raw.lavaNoise()),
-                DensityFunctionCompiler.compile(raw.temperature()),
-                DensityFunctionCompiler.compile(raw.vegetation()),
-                DensityFunctionCompiler.compile(raw.continents()),
-                DensityFunctionCompiler.compile(raw.erosion()),
-                DensityFunctionCompiler.compile(raw.depth()),
-                DensityFunctionCompiler.compile(raw.ridges()),
-                DensityFunctionCompiler.compile(raw.initialDensityWithoutJaggedness()),
-                DensityFunctionCompiler.compile(raw.finalDensity()),
-                DensityFunctionCompiler.compile(raw.veinToggle()),
-                DensityFunctionCompiler.compile(raw.veinRidged()),
-                DensityFunctionCompiler.compile(raw.veinGap()));
+        // The outputs share many subtrees, the cache lives only as long as this router's compilation
+        final CompilationCache cache = new CompilationCache();
+        final List<DensityFunction> outputs = List.of(
+                raw.barrierNoise(),
+                raw.fluidLevelFloodednessNoise(),
+                raw.fluidLevelSpreadNoise(),
+                raw.lavaNoise(),
+                raw.temperature(),
+                raw.vegetation(),
+                raw.continents(),
+                raw.erosion(),
+                raw.depth(),
+                raw.ridges(),
+                raw.initialDensityWithoutJaggedness(),
+                raw.finalDensity(),
+                raw.veinToggle(),
+                raw.veinRidged(),
+                raw.veinGap());
+        final List<DensityFunction> c =
+                compileRouterOutputs(fusedRouter ? RouterFusion.shareCommonSubtrees(outputs) : outputs, cache);
+        final NoiseRouter compiled = new NoiseRouter(
+                c.get(0), c.get(1), c.get(2), c.get(3), c.get(4), c.get(5), c.get(6), c.get(7), c.get(8), c.get(9),
+                c.get(10), c.get(11), c.get(12), c.get(13), c.get(14));
+        if (tieredCompilation) {
+            return compiled;
+        }
+        expungeUnloadedClasses();
+        logger.info(
+                "Compiled noise router, {}, reused classes {}/{}, unloaded classes {} (~{} bytes)",
+                cache,
+                reusedClasses.get(),
+                reusedClasses.get() + classesByShape.size(),
+                unloadedClasses.get(),
+                unloadedClassBytes.get());
+        return compiled;
     }
 
-    public static DensityFunction compile(DensityFunction df) {
-        if (shouldKeepFunctionType(df)) {
-            return df;
+    /**
+     * Compiles the router outputs on the compiler pool, subtrees shared between outputs are compiled only once through
+     * the cache even when two outputs reach them at the same time
+     */
+    private static List<DensityFunction> compileRouterOutputs(List<DensityFunction> outputs, CompilationCache cache) {
+        if (tieredCompilation || compilerThreads <= 1) {
+            return outputs.stream().map(df -> compileRouterOutput(df, cache)).toList();
         }
-        boolean reused = true;
-        DensityFunction compiled = compilationCache.get(df);
-        if (compiled == null) {
-            reused = false;
-            // not found, compile and put
-            // don't use computeIfAbsent because we may recursively enter this function again from the compiler
-            compiled = compileFresh(df);
-            compilationCache.put(df, compiled);
+        final List<CompletableFuture<DensityFunction>> futures = outputs.stream()
+                .map(df -> CompletableFuture.supplyAsync(() -> compileRouterOutput(df, cache), CompilerPool.POOL))
+                .toList();
+        try {
+            return futures.stream().map(CompletableFuture::join).toList();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
         }
-        long total = totalCalls.incrementAndGet();
-        long tReused;
-        if (reused) {
-            tReused = reusedCalls.incrementAndGet();
-        } else {
-            tReused = reusedCalls.get();
+    }
+
+    private static DensityFunction compileRouterOutput(DensityFunction df, CompilationCache cache) {
+        if (!tieredCompilation) {
+            return compile(df, cache);
         }
-        // TODO: Make toggleable in settings
-        if ((total % 100) == 0) {
-            logger.info("DF Compiler cache hits {} {}/{}", (double) tReused / total, tReused, total);
+        if (shouldKeepFunctionType(df) || df instanceof DensityFunctions.Constant) {
+            return df;
         }
+        return new TieredDensityFunction(df, fn -> compile(fn, cache));
+    }
 
-        return compiled;
+    /**
+     * Compiles a single function with a cache of its own, use {@link #compile(DensityFunction, CompilationCache)} to
+     * share compiled subtrees between several functions
+     */
+    public static DensityFunction compile(DensityFunction df) {
+        return compile(df, new CompilationCache());
     }
 
-    private static CubicSpline<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate> compileSpline(
-            CubicSpline<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate> spline) {
-        if (spline
-                instanceof
-                CubicSpline.Multipoint<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate>
-                mp) {
-            final DensityFunction rawCoord = mp.coordinate().function().value();
-            final DensityFunction compiledCoord = compile(rawCoord);
-            final List<CubicSpline<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate>> values =
-                    mp.values().stream()
-                            .map(DensityFunctionCompiler::compileSpline)
-                            .toList();
-            return new CubicSpline.Multipoint<>(
-                    new DensityFunctions.Spline.Coordinate(Holder.direct(compiledCoord)),
-                    mp.locations(),
-                    values,
-                    mp.derivatives(),
-                    mp.minValue(),
-                    mp.maxValue());
-        } else {
-            return spline;
+    public static DensityFunction compile(DensityFunction df, CompilationCache cache) {
+        if (shouldKeepFunctionType(df)) {
+            return df;
         }
+        // concurrent compilations of an equal tree wait for the first one instead of compiling it again
+        return cache.computeIfAbsent(df, source -> compileFresh(source, cache));
     }
 
-    @SuppressWarnings("unchecked")
-    private static DensityFunction compileFresh(DensityFunction df) {
+    private static DensityFunction compileFresh(DensityFunction df, CompilationCache cache) {
         if (df instanceof DensityFunctions.Marker marker) {
-            final DensityFunction compiled = compile(marker.wrapped());
+            final DensityFunction compiled = compile(marker.wrapped(), cache);
             return switch (marker.type()) {
                 case Interpolated -> DensityFunctions.interpolated(compiled);
                 case FlatCache -> DensityFunctions.flatCache(compiled);
@@ -161,46 +313,29 @@ public final class DensityFunctionCompiler {
                 case CacheOnce -> DensityFunctions.cacheOnce(compiled);
                 case CacheAllInCell -> DensityFunctions.cacheAllInCell(compiled);
             };
-        } else if (df instanceof DensityFunctions.Spline splineFn) {
-            final CubicSpline<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate> rawSpline =
-                    splineFn.spline();
-            final CubicSpline<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate> compiledSpline =
-                    compileSpline(rawSpline);
-            if (rawSpline != compiledSpline) {
-                return DensityFunctions.spline(compiledSpline);
-            } else {
-                return df;
-            }
+        } else if (df instanceof SharedValue shared) {
+            return new SharedValue(compile(shared.wrapped(), cache));
         } else if (shouldKeepFunctionType(df)) {
             return df;
         }
-        final long classIndex = classCounter.incrementAndGet();
-        final String errorFilePath = "CompiledDensityFunction$" + classIndex + ".class";
-
         final ClassNode k = new ClassNode();
         {
             final ClassReader templateCopier = new ClassReader(templateClassBytes);
             templateCopier.accept(k, ClassReader.SKIP_FRAMES);
         }
+        // The class keeps the template name until its shape is known to be new, see defineShapeClass
 
-        k.name += "$" + classIndex;
         if (k.fields == null) {
             k.fields = new ArrayList<>();
         }
 
-        // index
-        {
-            MethodNode m = k.methods.stream()
-                    .filter(mn -> mn.name.equals("functionIndex"))
-                    .findFirst()
-                    .orElseThrow();
-            m.instructions.clear();
-            m.visitCode();
-            m.visitLdcInsn(classIndex);
-            m.visitInsn(LRETURN);
-            m.visitMaxs(0, 0);
-            m.visitEnd();
-        }
+        final Node ir = passManager.run(IrBuilder.build(df));
+        final Range range = new RangeAnalysis().rangeOf(ir);
+        // The exact bounds let the vanilla functions around this one short-circuit more often, which would only change
+        // their result if this function could be NaN
+        final double minValue = range.nan() ? df.minValue() : Math.max(df.minValue(), range.min());
+        final double maxValue = range.nan() ? df.maxValue() : Math.min(df.maxValue(), range.max());
+
         // min value
         {
             MethodNode m = k.methods.stream()
@@ -209,7 +344,7 @@ public final class DensityFunctionCompiler {
                     .orElseThrow();
             m.instructions.clear();
             m.visitCode();
-            m.visitLdcInsn(df.minValue());
+            m.visitLdcInsn(minValue);
             m.visitInsn(DRETURN);
             m.visitMaxs(0, 0);
             m.visitEnd();
@@ -222,13 +357,14 @@ public final class DensityFunctionCompiler {
                     .orElseThrow();
             m.instructions.clear();
             m.visitCode();
-            m.visitLdcInsn(df.maxValue());
+            m.visitLdcInsn(maxValue);
             m.visitInsn(DRETURN);
             m.visitMaxs(0, 0);
             m.visitEnd();
         }
         final List<DensityFunction> storedDfs = new ArrayList<>();
         final List<DensityFunction.NoiseHolder> storedNoises = new ArrayList<>();
+        final Context ctx = new Context(k, cache, storedDfs, storedNoises);
         // compute
         {
             MethodNode m = k.methods.stream()
@@ -237,14 +373,102 @@ public final class DensityFunctionCompiler {
                     .orElseThrow();
             m.instructions.clear();
             try {
-                populateCompute(df, k, m, storedDfs, storedNoises);
+                populateCompute(ir, ctx, m);
             } catch (TooSimpleException e) {
                 return df;
             }
         }
+        // fill array
+        {
+            MethodNode m = k.methods.stream()
+                    .filter(mn -> mn.name.equals("compiledFillArray"))
+                    .findFirst()
+                    .orElseThrow();
+            m.instructions.clear();
+            populateFillArray(ir, ctx, m);
+        }
+        ctx.finish();
+
+        final Class<? extends CompiledDensityFunction> klass = getShapeClass(k);
+
+        final CompiledDensityFunction instance;
+        try {
+            instance = klass.getConstructor(
+                            DensityFunction.class, DensityFunction[].class, DensityFunction.NoiseHolder[].class)
+                    .newInstance(
+                            df,
+                            storedDfs.toArray(new DensityFunction[0]),
+                            storedNoises.toArray(new DensityFunction.NoiseHolder[0]));
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+
+        return instance;
+    }
+
+    /** @return The class generated earlier for the same shape, or the newly defined class */
+    private static Class<? extends CompiledDensityFunction> getShapeClass(ClassNode k) {
+        expungeUnloadedClasses();
+        final ClassShape shape = ClassShape.of(k);
+        final ShapeClassReference existing = classesByShape.get(shape);
+        final Class<? extends CompiledDensityFunction> existingClass = existing == null ? null : existing.get();
+        if (existingClass != null) {
+            reusedClasses.incrementAndGet();
+            logger.debug("Reusing {} for a tree of the same shape", existingClass.getName());
+            return existingClass;
+        }
+        final Class<? extends CompiledDensityFunction> klass = defineShapeClass(k);
+        // A concurrent compilation of the same shape may replace this entry, both classes stay valid
+        classesByShape.put(shape, new ShapeClassReference(klass, shape));
+        return klass;
+    }
+
+    /** @return The class file generated for the class of the function before it was named, to inspect the code */
+    public static byte[] generatedClassBytes(CompiledDensityFunction compiled) {
+        for (ShapeClassReference reference : classesByShape.values()) {
+            if (reference.get() == compiled.getClass()) {
+                return reference.shape.bytes.clone();
+            }
+        }
+        throw new IllegalArgumentException("No generated class file for " + compiled.getClass().getName());
+    }
+
+    private static void expungeUnloadedClasses() {
+        Reference<?> ref;
+        while ((ref = unloadedClassQueue.poll()) != null) {
+            final ShapeClassReference shapeRef = (ShapeClassReference) ref;
+            classesByShape.remove(shapeRef.shape, shapeRef);
+            unloadedClasses.incrementAndGet();
+            unloadedClassBytes.addAndGet(shapeRef.shape.bytes.length);
+        }
+    }
+
+    /**
+     * Gives the generated class its final name and index, then loads it
+     * @param k The generated class, still named after the template
+     */
+    @SuppressWarnings("unchecked")
+    private static Class<? extends CompiledDensityFunction> defineShapeClass(ClassNode k) {
+        final long classIndex = classCounter.incrementAndGet();
+        final String className = k.name + "$" + classIndex;
+        final String errorFilePath = "CompiledDensityFunction$" + classIndex + ".class";
+
+        // index
+        {
+            MethodNode m = k.methods.stream()
+                    .filter(mn -> mn.name.equals("functionIndex"))
+                    .findFirst()
+                    .orElseThrow();
+            m.instructions.clear();
+            m.visitCode();
+            m.visitLdcInsn(classIndex);
+            m.visitInsn(LRETURN);
+            m.visitMaxs(0, 0);
+            m.visitEnd();
+        }
 
         final ClassWriter kWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
-        k.accept(kWriter);
+        k.accept(new ClassRemapper(kWriter, new SimpleRemapper(k.name, className)));
         final byte[] kBytes = kWriter.toByteArray();
 
         if (debugWrite) {
@@ -253,8 +477,14 @@ public final class DensityFunctionCompiler {
 
         final Class<? extends CompiledDensityFunction> klass;
         try {
-            klass = (Class<? extends CompiledDensityFunction>)
-                    MethodHandles.lookup().defineClass(kBytes);
+            if (hiddenClasses) {
+                // Not a strong hidden class, it is unloaded together with the last compiled function using it
+                klass = (Class<? extends CompiledDensityFunction>)
+                        MethodHandles.lookup().defineHiddenClass(kBytes, true).lookupClass();
+            } else {
+                klass = (Class<? extends CompiledDensityFunction>)
+                        MethodHandles.lookup().defineClass(kBytes);
+            }
         } catch (Throwable e) {
             logger.error("Could not load generated class bytes: ", e);
             dumpClass(errorFilePath, kBytes);
@@ -268,40 +498,269 @@ public final class DensityFunctionCompiler {
             throw new RuntimeException(e);
         }
         logger.debug("Compiled and loaded {}", klass.getName());
+        return klass;
+    }
 
-        final CompiledDensityFunction instance;
-        try {
-            instance = klass.getConstructor(
-                            DensityFunction.class, DensityFunction[].class, DensityFunction.NoiseHolder[].class)
-                    .newInstance(
-                            df,
-                            storedDfs.toArray(new DensityFunction[0]),
-                            storedNoises.toArray(new DensityFunction.NoiseHolder[0]));
-        } catch (ReflectiveOperationException e) {
-            throw new RuntimeException(e);
+    private static final class ShapeClassReference extends WeakReference<Class<? extends CompiledDensityFunction>> {
+        private final ClassShape shape;
+
+        ShapeClassReference(Class<? extends CompiledDensityFunction> klass, ClassShape shape) {
+            super(klass, unloadedClassQueue);
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * The generated bytecode of a class before it is named. Noise instances and other seed-dependent state only reach
+     * the class through the constructor arrays, so trees that differ only in those share a shape and a class.
+     */
+    private static final class ClassShape {
+        private final byte[] bytes;
+        private final int hash;
+
+        private ClassShape(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
         }
 
-        return instance;
+        static ClassShape of(ClassNode k) {
+            final ClassWriter writer = new ClassWriter(0);
+            k.accept(writer);
+            return new ClassShape(writer.toByteArray());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ClassShape that && hash == that.hash && Arrays.equals(bytes, that.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 
-    private static void populateCompute(
-            DensityFunction df,
-            ClassNode kls,
-            MethodNode m,
-            List<DensityFunction> storedDfs,
-            List<DensityFunction.NoiseHolder> storedNoises) {
+    private static void populateCompute(Node ir, Context ctx, MethodNode m) {
         m.visitCode();
-        final Context ctx = new Context(kls, m, storedDfs, storedNoises, 2);
-        ctx.visitCompute(df);
+        // locals: 0 = this, 1 = context
+        ctx.beginMethod(m, 1, 2);
+        ctx.visitMethodBody(ir);
         if (ctx.comprisedOps < 4) {
             throw new TooSimpleException();
         }
-        ctx.finish();
         m.visitInsn(DRETURN);
         m.visitMaxs(0, 0);
         m.visitEnd();
     }
 
+    /**
+     * Generates a single loop over the output array that evaluates the whole tree for each index, instead of calling
+     * compiledCompute for every cell. The noises sampled at every index are filled into arrays with the batched kernel
+     * before the loop, like vanilla fills the arguments of Ap2.
+     */
+    private static void populateFillArray(Node ir, Context ctx, MethodNode m) {
+        if (vectorize && Context.isVectorNode(ir) && !(ir instanceof Node.Const)) {
+            populateVectorFillArray(ir, ctx, m);
+            return;
+        } else if (Context.isBatchedNoise(ir)) {
+            populateNoiseFillArray(ir, ctx, m);
+            return;
+        }
+        m.visitCode();
+        // locals: 0 = this, 1 = vals[], 2 = contextProvider, 3 = vals.length, 4 = index, 5 = context for the index
+        ctx.beginMethod(m, 5, 6);
+        final List<Node> batchedNoises = Context.batchedNoises(ir);
+        for (Node noise : batchedNoises) {
+            ctx.leafArrays.put(noise, ctx.currentVar++);
+        }
+        visitIndexLoop(ir, ctx, m, () -> {
+            m.visitVarInsn(ALOAD, 1);
+            m.visitVarInsn(ILOAD, 4);
+            ctx.visitCompute(ir);
+            m.visitInsn(DASTORE);
+        });
+        m.visitInsn(RETURN);
+        // only the arrays the loop reads are filled, the noises in split parts are computed there for each index
+        final MethodNode fills = new MethodNode();
+        for (Node noise : batchedNoises) {
+            final int vNoise = ctx.leafArrays.get(noise);
+            if (readsLocal(m, vNoise)) {
+                visitLeafArray(noise, vNoise, ctx, fills);
+            }
+        }
+        m.instructions.insert(fills.instructions);
+        m.visitMaxs(0, 0);
+        m.visitEnd();
+    }
+
+    /** Generates the code filling the array held by a local with the values of a subtree, in a method of its own */
+    private static void visitLeafArray(Node leaf, int vLeaf, Context ctx, MethodNode m) {
+        m.visitVarInsn(ALOAD, 1);
+        m.visitInsn(ARRAYLENGTH);
+        m.visitIntInsn(NEWARRAY, T_DOUBLE);
+        m.visitVarInsn(ASTORE, vLeaf);
+        m.visitVarInsn(ALOAD, 0);
+        m.visitVarInsn(ALOAD, vLeaf);
+        m.visitVarInsn(ALOAD, 2);
+        m.visitMethodInsn(
+                INVOKESPECIAL, ctx.kls.name, ctx.addFillArrayPart(leaf), tFillArrayMethod.getDescriptor(), false);
+    }
+
+    private static boolean readsLocal(MethodNode m, int var) {
+        for (AbstractInsnNode insn : m.instructions) {
+            if (insn instanceof VarInsnNode varInsn && varInsn.getOpcode() == ALOAD && varInsn.var == var) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fills a noise in two passes: the coordinates of every index are computed with the scalar loop, then the batched
+     * kernel samples all of them. The noise is pure, so only the shifts are evaluated in the order of the indices.
+     */
+    private static void populateNoiseFillArray(Node ir, Context ctx, MethodNode m) {
+        m.visitCode();
+        // locals: 0 = this, 1 = vals[], 2 = contextProvider, 3 = vals.length, 4 = index, 5 = context for the index,
+        // 6-8 = the x, y and z coordinates of every index
+        final int vXs = 6, vYs = 7, vZs = 8;
+        ctx.beginMethod(m, 5, 9);
+        for (int vCoordinates = vXs; vCoordinates <= vZs; vCoordinates++) {
+            m.visitVarInsn(ALOAD, 1);
+            m.visitInsn(ARRAYLENGTH);
+            m.visitIntInsn(NEWARRAY, T_DOUBLE);
+            m.visitVarInsn(ASTORE, vCoordinates);
+        }
+        visitIndexLoop(ir, ctx, m, () -> ctx.visitNoiseCoordinates(ir, vXs, vYs, vZs));
+        m.visitVarInsn(ALOAD, 0);
+        m.visitFieldInsn(
+                GETFIELD, ctx.kls.name, ctx.addStoredFlatNoise(Context.noiseOf(ir)), tFlatNoise.getDescriptor());
+        m.visitVarInsn(ALOAD, vXs);
+        m.visitVarInsn(ALOAD, vYs);
+        m.visitVarInsn(ALOAD, vZs);
+        m.visitVarInsn(ALOAD, 1);
+        m.visitMethodInsn(
+                INVOKESTATIC,
+                tUtils.getInternalName(),
+                "fillNoiseValues",
+                tFillNoiseValuesMethod.getDescriptor(),
+                false);
+        m.visitInsn(RETURN);
+        m.visitMaxs(0, 0);
+        m.visitEnd();
+    }
+
+    /**
+     * Generates the loop over the indices of the filled array, with the context, coordinates and column values of each
+     * index prepared for the body. Uses the locals 3 = vals.length, 4 = index and 5 = context for the index.
+     * @param body Generates the code evaluating the tree for the index
+     */
+    private static void visitIndexLoop(Node ir, Context ctx, MethodNode m, Runnable body) {
+        final int vLength = 3, vIndex = 4, vContext = 5;
+        ctx.beginArrayLoop(vIndex, vLength);
+        m.visitVarInsn(ALOAD, 1);
+        m.visitInsn(ARRAYLENGTH);
+        m.visitVarInsn(ISTORE, vLength);
+        m.visitInsn(ICONST_0);
+        m.visitVarInsn(ISTORE, vIndex);
+        ctx.beginColumnHoisting(ir);
+        ctx.prepareMethodBody(ir);
+        ctx.allocateCoordinates(ir);
+
+        final Label loopStart = new Label(), loopEnd = new Label();
+        m.visitLabel(loopStart);
+        m.visitVarInsn(ILOAD, vIndex);
+        m.visitVarInsn(ILOAD, vLength);
+        m.visitJumpInsn(IF_ICMPGE, loopEnd);
+
+        m.visitVarInsn(ALOAD, 2);
+        m.visitVarInsn(ILOAD, vIndex);
+        m.visitMethodInsn(
+                INVOKESTATIC, tUtils.getInternalName(), "forIndex", tForIndexMethod.getDescriptor(), false);
+        m.visitVarInsn(ASTORE, vContext);
+        ctx.visitCoordinateReads();
+        ctx.visitColumnCheck();
+        body.run();
+
+        m.visitIincInsn(vIndex, 1);
+        m.visitJumpInsn(GOTO, loopStart);
+        m.visitLabel(loopEnd);
+    }
+
+    /**
+     * Fills an array for every maximal subtree below the lane-wise arithmetic at the top of the tree, each in a loop of
+     * its own like vanilla fills the arguments of Ap2, then computes the arithmetic for a vector of indices at a time.
+     * The indices past the last full vector are computed with the scalar code.
+     */
+    private static void populateVectorFillArray(Node ir, Context ctx, MethodNode m) {
+        m.visitCode();
+        // locals: 0 = this, 1 = vals[], 2 = contextProvider, 3 = vals.length, 4 = index, the arithmetic has no context
+        final int vLength = 3, vIndex = 4;
+        ctx.beginMethod(m, -1, 5);
+        ctx.beginArrayLoop(vIndex, vLength);
+        m.visitVarInsn(ALOAD, 1);
+        m.visitInsn(ARRAYLENGTH);
+        m.visitVarInsn(ISTORE, vLength);
+        for (Node leaf : Context.vectorLeaves(ir)) {
+            final int vLeaf = ctx.currentVar++;
+            visitLeafArray(leaf, vLeaf, ctx, m);
+            ctx.leafArrays.put(leaf, vLeaf);
+        }
+        final int vBound = ctx.currentVar++;
+        m.visitFieldInsn(
+                GETSTATIC, tDoubleVector.getInternalName(), "SPECIES_PREFERRED", tVectorSpecies.getDescriptor());
+        m.visitVarInsn(ILOAD, vLength);
+        m.visitMethodInsn(INVOKEINTERFACE, tVectorSpecies.getInternalName(), "loopBound", "(I)I", true);
+        m.visitVarInsn(ISTORE, vBound);
+        m.visitInsn(ICONST_0);
+        m.visitVarInsn(ISTORE, vIndex);
+
+        final Label vectorStart = new Label(), scalarStart = new Label(), loopEnd = new Label();
+        m.visitLabel(vectorStart);
+        m.visitVarInsn(ILOAD, vIndex);
+        m.visitVarInsn(ILOAD, vBound);
+        m.visitJumpInsn(IF_ICMPGE, scalarStart);
+        ctx.visitVector(ir);
+        m.visitVarInsn(ALOAD, 1);
+        m.visitVarInsn(ILOAD, vIndex);
+        m.visitMethodInsn(
+                INVOKEVIRTUAL,
+                tDoubleVector.getInternalName(),
+                "intoArray",
+                Type.getMethodDescriptor(Type.VOID_TYPE, tDoubleArr, Type.INT_TYPE),
+                false);
+        m.visitVarInsn(ILOAD, vIndex);
+        m.visitFieldInsn(
+                GETSTATIC, tDoubleVector.getInternalName(), "SPECIES_PREFERRED", tVectorSpecies.getDescriptor());
+        m.visitMethodInsn(INVOKEINTERFACE, tVectorSpecies.getInternalName(), "length", "()I", true);
+        m.visitInsn(IADD);
+        m.visitVarInsn(ISTORE, vIndex);
+        m.visitJumpInsn(GOTO, vectorStart);
+
+        m.visitLabel(scalarStart);
+        m.visitVarInsn(ILOAD, vIndex);
+        m.visitVarInsn(ILOAD, vLength);
+        m.visitJumpInsn(IF_ICMPGE, loopEnd);
+        m.visitVarInsn(ALOAD, 1);
+        m.visitVarInsn(ILOAD, vIndex);
+        ctx.visitCompute(ir);
+        m.visitInsn(DASTORE);
+        m.visitIincInsn(vIndex, 1);
+        m.visitJumpInsn(GOTO, scalarStart);
+        m.visitLabel(loopEnd);
+        m.visitInsn(RETURN);
+        m.visitMaxs(0, 0);
+        m.visitEnd();
+    }
+
+    private static boolean isVectorApiAvailable() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return true;
+        }
+        logger.warn("worldbytes.compiler.vectorize needs --add-modules jdk.incubator.vector, fillArray stays scalar");
+        return false;
+    }
+
     private static void dumpClass(String fileName, byte[] kBytes) {
         final Path filePath = FileSystems.getDefault().getPath(fileName);
         logger.error("Attempting to save class to {}", filePath.toAbsolutePath());
@@ -314,24 +773,64 @@ public final class DensityFunctionCompiler {
 
     private static class Context {
         private final ClassNode kls;
-        private final MethodNode m;
+        private final CompilationCache cache;
         private final MethodNode ctor;
         private final List<DensityFunction> storedDfs;
         private final List<DensityFunction.NoiseHolder> storedNoises;
+        private final HashMap<SplineValue.Multipoint, String> splineMethods = new HashMap<>();
+        private final IdentityHashMap<DensityFunctions.Marker, Integer> markers = new IdentityHashMap<>();
+        private MethodNode m;
+        private int contextVar;
         private int currentVar;
+        /**
+         * Whether the code being generated is the body of a fillArray loop. NoiseChunk.CacheOnce behaves differently in
+         * fillArray, so markers vanilla would fill as whole arrays are generated differently in the loop.
+         */
+        private boolean arrayMode;
+        private int indexVar;
+        private int lengthVar;
+        /** How often each pure subtree is evaluated by the method being generated, in the order first reached */
+        private LinkedHashMap<Node, Integer> occurrences = new LinkedHashMap<>();
+        /** The local variables reserved for the values of repeated subtrees */
+        private HashMap<Node, Integer> valueSlots = new HashMap<>();
+        /** The local variables holding the values of repeated subtrees computed on every path to the current code */
+        private HashMap<Node, Integer> valueLocals = new HashMap<>();
+        /** The subtrees of the method being generated that are computed by a method of their own */
+        private HashSet<Node> splitNodes = new HashSet<>();
+        /** The methods generated for split subtrees, for compute and for fillArray loops */
+        private final HashMap<Node, String> partMethods = new HashMap<>();
+        private final HashMap<Node, String> partArrayMethods = new HashMap<>();
+        /**
+         * The local variables of a subtree computed once per column
+         * @param valueVar The double local holding the value
+         * @param validVar The int local set when the value was computed for the current column
+         */
+        private record ColumnValue(int valueVar, int validVar) {}
+
+        /** The subtrees of a fillArray loop computed once per column */
+        private LinkedHashMap<Node, ColumnValue> columnValues = new LinkedHashMap<>();
+        /** The local variables holding the block X and Z of the column the column values were computed for */
+        private int columnXVar, columnZVar;
+
+        /** The locals holding the arrays filled for the subtrees below the lane-wise arithmetic of fillArray */
+        private HashMap<Node, Integer> leafArrays = new HashMap<>();
+        private int fillArrayParts = 0;
+
+        private static final int AXIS_X = 0, AXIS_Y = 1, AXIS_Z = 2;
+        private static final String[] coordinateGetters = {"getFctxX", "getFctxY", "getFctxZ"};
+        /** The int locals holding the block coordinates read from the context at the start of the body, or -1 */
+        private int[] coordinateVars = {-1, -1, -1};
         public int comprisedOps = 0;
 
         Context(
                 ClassNode kls,
-                MethodNode m,
+                CompilationCache cache,
                 List<DensityFunction> storedDfs,
-                List<DensityFunction.NoiseHolder> storedNoises,
-                int currentVar) {
+                List<DensityFunction.NoiseHolder> storedNoises) {
             this.kls = kls;
-            this.m = m;
+            this.cache = cache;
             this.storedDfs = storedDfs;
             this.storedNoises = storedNoises;
-            this.currentVar = currentVar;
             this.ctor = kls.methods.stream()
                     .filter(mn -> mn.name.equals("<init>"))
                     .findFirst()
@@ -365,9 +864,107 @@ public final class DensityFunctionCompiler {
             return fieldName;
         }
 
+        /**
+         * Stores the islands of an EndIslandDensityFunction next to the function, the field is null when mapAll
+         * replaced the function with a different one
+         */
+        private String addStoredEndIslands(DensityFunction df) {
+            final String dfField = addStoredDensityFunction(df);
+            final String fieldName = "storedEndIslands" + dfField.substring("storedDf".length());
+            for (FieldNode field : kls.fields) {
+                if (field.name.equals(fieldName)) {
+                    return fieldName;
+                }
+            }
+
+            kls.fields.add(new FieldNode(ACC_PUBLIC | ACC_FINAL, fieldName, tEndIslands.getDescriptor(), null, null));
+
+            ctor.visitVarInsn(ALOAD, 0);
+            ctor.visitVarInsn(ALOAD, 0);
+            ctor.visitFieldInsn(GETFIELD, kls.name, dfField, tDF.getDescriptor());
+            ctor.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "getEndIslands",
+                    tGetEndIslandsMethod.getDescriptor(),
+                    false);
+            ctor.visitFieldInsn(PUTFIELD, kls.name, fieldName, tEndIslands.getDescriptor());
+
+            return fieldName;
+        }
+
+        /**
+         * Stores a BlendedNoise next to the function, the field is null when mapAll replaced the function with one
+         * different from the parameters baked into the code
+         */
+        private String addStoredBlendedNoise(BlendedNoise noise) {
+            final String dfField = addStoredDensityFunction(noise);
+            final String fieldName = "storedBlendedNoise" + dfField.substring("storedDf".length());
+            for (FieldNode field : kls.fields) {
+                if (field.name.equals(fieldName)) {
+                    return fieldName;
+                }
+            }
+
+            kls.fields.add(
+                    new FieldNode(ACC_PUBLIC | ACC_FINAL, fieldName, tBlendedNoise.getDescriptor(), null, null));
+
+            ctor.visitVarInsn(ALOAD, 0);
+            ctor.visitVarInsn(ALOAD, 0);
+            ctor.visitFieldInsn(GETFIELD, kls.name, dfField, tDF.getDescriptor());
+            ctor.visitLdcInsn(noise.xzMultiplier);
+            ctor.visitLdcInsn(noise.yMultiplier);
+            ctor.visitLdcInsn(noise.xzFactor);
+            ctor.visitLdcInsn(noise.yFactor);
+            ctor.visitLdcInsn(noise.smearScaleMultiplier);
+            ctor.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "asBlendedNoise",
+                    tAsBlendedNoiseMethod.getDescriptor(),
+                    false);
+            ctor.visitFieldInsn(PUTFIELD, kls.name, fieldName, tBlendedNoise.getDescriptor());
+
+            return fieldName;
+        }
+
+        /**
+         * Stores an octave of one of the PerlinNoises of a BlendedNoise, null when the noise was replaced
+         * @param perlinIndex 0 for the min limit noise, 1 for the max limit noise, 2 for the main noise
+         */
+        private String addStoredBlendedOctave(BlendedNoise noise, int perlinIndex, int octaveIndex) {
+            final String noiseField = addStoredBlendedNoise(noise);
+            final String fieldName = "storedBlendedOctave" + noiseField.substring("storedBlendedNoise".length()) + "_"
+                    + perlinIndex + "_" + octaveIndex;
+            for (FieldNode field : kls.fields) {
+                if (field.name.equals(fieldName)) {
+                    return fieldName;
+                }
+            }
+
+            kls.fields.add(
+                    new FieldNode(ACC_PUBLIC | ACC_FINAL, fieldName, tImprovedNoise.getDescriptor(), null, null));
+
+            ctor.visitVarInsn(ALOAD, 0);
+            ctor.visitVarInsn(ALOAD, 0);
+            ctor.visitFieldInsn(GETFIELD, kls.name, noiseField, tBlendedNoise.getDescriptor());
+            ctor.visitLdcInsn(perlinIndex);
+            ctor.visitLdcInsn(octaveIndex);
+            ctor.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "getBlendedNoiseOctave",
+                    tGetBlendedNoiseOctaveMethod.getDescriptor(),
+                    false);
+            ctor.visitFieldInsn(PUTFIELD, kls.name, fieldName, tImprovedNoise.getDescriptor());
+
+            return fieldName;
+        }
+
         private String addStoredNoise(DensityFunction.NoiseHolder nh) {
+            // equal holders sample the same NormalNoise instance
             for (int i = 0; i < storedNoises.size(); i++) {
-                if (storedNoises.get(i) == nh) {
+                if (storedNoises.get(i).equals(nh)) {
                     return "storedNoise" + i;
                 }
             }
@@ -391,6 +988,223 @@ public final class DensityFunctionCompiler {
             return fieldName;
         }
 
+        /**
+         * Starts generating code into a new method, the stored fields are shared between all methods of the class
+         * @param m The method to generate code into
+         * @param contextVar The local variable holding the FunctionContext to evaluate at
+         * @param firstFreeVar The first local variable not used by the method's parameters
+         */
+        public void beginMethod(MethodNode m, int contextVar, int firstFreeVar) {
+            this.m = m;
+            this.contextVar = contextVar;
+            this.currentVar = firstFreeVar;
+            this.comprisedOps = 0;
+            this.arrayMode = false;
+            this.occurrences = new LinkedHashMap<>();
+            this.valueSlots = new HashMap<>();
+            this.valueLocals = new HashMap<>();
+            this.splitNodes = new HashSet<>();
+            this.columnValues = new LinkedHashMap<>();
+            this.coordinateVars = new int[] {-1, -1, -1};
+            this.leafArrays = new HashMap<>();
+        }
+
+        /**
+         * Marks the code generated next as the body of a fillArray loop
+         * @param indexVar The local variable holding the index into the filled array
+         * @param lengthVar The local variable holding the length of the filled array
+         */
+        public void beginArrayLoop(int indexVar, int lengthVar) {
+            this.arrayMode = true;
+            this.indexVar = indexVar;
+            this.lengthVar = lengthVar;
+        }
+
+        private String addStoredFlatNoise(DensityFunction.NoiseHolder nh) {
+            addStoredNoise(nh);
+            int noiseIdx = 0;
+            while (!storedNoises.get(noiseIdx).equals(nh)) {
+                noiseIdx++;
+            }
+            final String fieldName = "storedFlatNoise" + noiseIdx;
+            for (FieldNode field : kls.fields) {
+                if (field.name.equals(fieldName)) {
+                    return fieldName;
+                }
+            }
+
+            kls.fields.add(new FieldNode(ACC_PUBLIC | ACC_FINAL, fieldName, tFlatNoise.getDescriptor(), null, null));
+
+            ctor.visitVarInsn(ALOAD, 0);
+            ctor.visitVarInsn(ALOAD, 3); // load noises[]
+            ctor.visitLdcInsn(noiseIdx);
+            ctor.visitInsn(AALOAD);
+            ctor.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "getFlatNoise",
+                    tGetFlatNoiseMethod.getDescriptor(),
+                    false);
+            ctor.visitFieldInsn(PUTFIELD, kls.name, fieldName, tFlatNoise.getDescriptor());
+
+            return fieldName;
+        }
+
+        private String addSplineMethod(SplineValue.Multipoint spline) {
+            final String existing = splineMethods.get(spline);
+            if (existing != null) {
+                return existing;
+            }
+            final String methodName = "spline" + splineMethods.size();
+            splineMethods.put(spline, methodName);
+
+            generatePrivateMethod(methodName, tSplineMethod, FRETURN, false, () -> {
+                prepareMethodBody(spline.coordinate());
+                allocateCoordinates(spline.coordinate());
+                visitCoordinateReads();
+                visitSpline(spline);
+            });
+
+            return methodName;
+        }
+
+        /**
+         * Generates a private method of the compiled class taking only the FunctionContext, the code generation state
+         * of the method currently being generated is restored afterwards
+         */
+        private void generatePrivateMethod(
+                String name, Type type, int returnOpcode, boolean arrayLoop, Runnable body) {
+            final MethodNode method = new MethodNode(ACC_PRIVATE, name, type.getDescriptor(), null, null);
+            kls.methods.add(method);
+            generateNestedMethod(() -> {
+                if (arrayLoop) {
+                    // locals: 0 = this, 1 = context, 2 = array index, 3 = array length
+                    beginMethod(method, 1, 4);
+                    beginArrayLoop(2, 3);
+                } else {
+                    // locals: 0 = this, 1 = context
+                    beginMethod(method, 1, 2);
+                }
+                method.visitCode();
+                body.run();
+                method.visitInsn(returnOpcode);
+                method.visitMaxs(0, 0);
+                method.visitEnd();
+            });
+        }
+
+        /** Runs a generator of another method, restoring the code generation state of the current one afterwards */
+        private void generateNestedMethod(Runnable generator) {
+            final MethodNode outerMethod = this.m;
+            final int outerContextVar = this.contextVar;
+            final int outerCurrentVar = this.currentVar;
+            final int outerOps = this.comprisedOps;
+            final boolean outerArrayMode = this.arrayMode;
+            final int outerIndexVar = this.indexVar;
+            final int outerLengthVar = this.lengthVar;
+            final LinkedHashMap<Node, Integer> outerOccurrences = this.occurrences;
+            final HashMap<Node, Integer> outerValueSlots = this.valueSlots;
+            final HashMap<Node, Integer> outerValueLocals = this.valueLocals;
+            final HashSet<Node> outerSplitNodes = this.splitNodes;
+            final LinkedHashMap<Node, ColumnValue> outerColumnValues = this.columnValues;
+            final int[] outerCoordinateVars = this.coordinateVars;
+            final HashMap<Node, Integer> outerLeafArrays = this.leafArrays;
+            generator.run();
+            final int methodOps = this.comprisedOps;
+            this.m = outerMethod;
+            this.contextVar = outerContextVar;
+            this.currentVar = outerCurrentVar;
+            this.comprisedOps = outerOps + methodOps;
+            this.arrayMode = outerArrayMode;
+            this.indexVar = outerIndexVar;
+            this.lengthVar = outerLengthVar;
+            this.occurrences = outerOccurrences;
+            this.valueSlots = outerValueSlots;
+            this.valueLocals = outerValueLocals;
+            this.splitNodes = outerSplitNodes;
+            this.columnValues = outerColumnValues;
+            this.coordinateVars = outerCoordinateVars;
+            this.leafArrays = outerLeafArrays;
+        }
+
+        /**
+         * Registers a cache marker: the vanilla marker is stored for mapAll, the wrapped function is compiled into its
+         * own private method and the constructor prepares the state for every possible mode of the mapped marker.
+         * @return The index of the marker, used in the names of its fields and methods
+         */
+        private int addMarker(Node.Marker marker) {
+            final Integer existing = markers.get(marker.original());
+            if (existing != null) {
+                return existing;
+            }
+            final int markerIdx = markers.size();
+            markers.put(marker.original(), markerIdx);
+            // Stored as a marker around the compiled function, so that NoiseChunk can wrap it with its caches
+            final DensityFunction storedMarker = compile(marker.original(), cache);
+            addStoredDensityFunction(storedMarker);
+            int functionIdx = 0;
+            while (storedDfs.get(functionIdx) != storedMarker) {
+                functionIdx++;
+            }
+            generatePrivateMethod(
+                    "marker" + markerIdx, tMarkerMethod, DRETURN, false, () -> visitMethodBody(marker.wrapped()));
+
+            addMarkerField(markerIdx, "markerMode", Type.INT_TYPE, functionIdx, null, true);
+            ctor.visitVarInsn(ALOAD, 0);
+            ctor.visitVarInsn(ALOAD, 2); // load functions[]
+            ctor.visitLdcInsn(functionIdx);
+            ctor.visitInsn(AALOAD);
+            ctor.visitLdcInsn(marker.type().ordinal());
+            ctor.visitMethodInsn(
+                    INVOKESTATIC, tUtils.getInternalName(), "markerMode", tMarkerModeMethod.getDescriptor(), false);
+            ctor.visitFieldInsn(PUTFIELD, kls.name, "markerMode" + markerIdx, "I");
+            switch (marker.type()) {
+                case Interpolated -> addMarkerField(
+                        markerIdx, "markerInterpolator", tNoiseInterpolator, functionIdx, "asInterpolator", true);
+                case FlatCache -> {
+                    addMarkerField(
+                            markerIdx, "markerFlatValues", tFlatCacheValues, functionIdx, "flatCacheValues", true);
+                    addMarkerField(
+                            markerIdx, "markerFlatQuartX", Type.INT_TYPE, functionIdx, "flatCacheFirstQuartX", true);
+                    addMarkerField(
+                            markerIdx, "markerFlatQuartZ", Type.INT_TYPE, functionIdx, "flatCacheFirstQuartZ", true);
+                }
+                case Cache2D -> addMarkerField(markerIdx, "markerCache2D", tCache2D, functionIdx, "asCache2D", true);
+                case CacheOnce -> {
+                    addMarkerField(markerIdx, "markerOwner", tNoiseChunk, functionIdx, "cacheOwner", true);
+                    addMarkerField(markerIdx, "markerCacheOnce", tCacheOnce, functionIdx, "asCacheOnce", true);
+                    addMarkerField(markerIdx, "markerArrayHit", Type.BOOLEAN_TYPE, functionIdx, null, false);
+                }
+                case CacheAllInCell -> {
+                    addMarkerField(markerIdx, "markerOwner", tNoiseChunk, functionIdx, "cacheOwner", true);
+                    addMarkerField(
+                            markerIdx, "markerCellValues", tCellCacheValues, functionIdx, "cellCacheValues", true);
+                }
+            }
+            return markerIdx;
+        }
+
+        /**
+         * @param initializer Name of the DensityFunctionUtils method computing the field from the stored function, or
+         *                    null to leave the field at its default value
+         */
+        private void addMarkerField(
+                int markerIdx, String name, Type type, int functionIdx, String initializer, boolean isFinal) {
+            final String fieldName = name + markerIdx;
+            kls.fields.add(new FieldNode(
+                    isFinal ? ACC_PUBLIC | ACC_FINAL : ACC_PUBLIC, fieldName, type.getDescriptor(), null, null));
+            if (initializer == null) {
+                return;
+            }
+            ctor.visitVarInsn(ALOAD, 0);
+            ctor.visitVarInsn(ALOAD, 2); // load functions[]
+            ctor.visitLdcInsn(functionIdx);
+            ctor.visitInsn(AALOAD);
+            ctor.visitMethodInsn(
+                    INVOKESTATIC, tUtils.getInternalName(), initializer, Type.getMethodDescriptor(type, tDF), false);
+            ctor.visitFieldInsn(PUTFIELD, kls.name, fieldName, type.getDescriptor());
+        }
+
         public void finish() {
             ctor.visitInsn(RETURN);
             ctor.visitMaxs(0, 0);
@@ -398,110 +1212,1378 @@ public final class DensityFunctionCompiler {
         }
 
         /**
-         * Generates code that pushes the value of df.compute(arg0) onto the Java stack
-         * @param gdf The density function to recursively translate
+         * Generates code that pushes the value of a cache marker onto the Java stack. The same class is used before and
+         * after NoiseChunk wraps the markers, so the code switches on the mode computed from the mapped function in the
+         * constructor.
          */
-        public void visitCompute(DensityFunction gdf) {
-            comprisedOps++;
-            if (gdf instanceof DensityFunctions.Constant df) {
-                m.visitLdcInsn(df.value());
-            } else if (gdf instanceof DensityFunctions.MulOrAdd df) {
-                visitCompute(df.input());
-                final double argConst = df.argument();
-                m.visitLdcInsn(argConst);
-                switch (df.type()) {
-                    case ADD -> {
-                        m.visitInsn(DADD);
+        private void visitMarker(Node.Marker marker, boolean inArray) {
+            final int markerIdx = addMarker(marker);
+            final Label call = new Label(), inline = new Label(), lowered = new Label(), end = new Label();
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerMode" + markerIdx, "I");
+            m.visitTableSwitchInsn(
+                    DensityFunctionUtils.MARKER_CALL,
+                    DensityFunctionUtils.MARKER_LOWERED,
+                    call,
+                    call,
+                    inline,
+                    lowered);
+
+            m.visitLabel(lowered);
+            switch (marker.type()) {
+                case Interpolated -> visitInterpolatedMarker(markerIdx);
+                case FlatCache -> visitFlatCacheMarker(markerIdx);
+                    // NoiseChunk.Cache2D.fillArray fills the wrapped function without caching
+                case Cache2D -> {
+                    if (inArray) {
+                        visitMarkerArrayMethodCall(marker, markerIdx);
+                    } else {
+                        visitCache2DMarker(markerIdx);
                     }
-                    case MUL -> {
-                        m.visitInsn(DMUL);
+                }
+                case CacheOnce -> {
+                    if (inArray) {
+                        visitCacheOnceArrayMarker(marker, markerIdx);
+                    } else {
+                        visitCacheOnceMarker(markerIdx);
                     }
-                    default -> throw new IllegalStateException(df.type().getSerializedName());
                 }
-            } else if (gdf instanceof DensityFunctions.Ap2 df) {
-                visitCompute(df.argument1());
-                switch (df.type()) {
-                    case ADD -> {
-                        visitCompute(df.argument2());
-                        m.visitInsn(DADD);
+                case CacheAllInCell -> visitCacheAllInCellMarker(markerIdx);
+            }
+            m.visitJumpInsn(GOTO, end);
+
+            m.visitLabel(inline);
+            if (inArray) {
+                visitMarkerArrayMethodCall(marker, markerIdx);
+            } else {
+                visitMarkerMethodCall(markerIdx);
+            }
+            m.visitJumpInsn(GOTO, end);
+
+            m.visitLabel(call);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(
+                    GETFIELD,
+                    kls.name,
+                    addStoredDensityFunction(compile(marker.original(), cache)),
+                    Type.getDescriptor(DensityFunction.class));
+            m.visitVarInsn(ALOAD, contextVar);
+            m.visitMethodInsn(
+                    INVOKESTATIC, tUtils.getInternalName(), "compute", tComputeMethod.getDescriptor(), false);
+            m.visitLabel(end);
+        }
+
+        /** Pushes the value of the wrapped function of a marker, without any caching */
+        private void visitMarkerMethodCall(int markerIdx) {
+            m.visitVarInsn(ALOAD, 0);
+            m.visitVarInsn(ALOAD, contextVar);
+            m.visitMethodInsn(INVOKESPECIAL, kls.name, "marker" + markerIdx, tMarkerMethod.getDescriptor(), false);
+        }
+
+        /**
+         * Pushes the value of the wrapped function of a marker for the current index of a fillArray loop, the wrapped
+         * function is generated again with the nodes vanilla would fill as arrays marked.
+         */
+        private void visitMarkerArrayMethodCall(Node.Marker marker, int markerIdx) {
+            final String methodName = "markerArray" + markerIdx;
+            if (kls.methods.stream().noneMatch(mn -> mn.name.equals(methodName))) {
+                generatePrivateMethod(
+                        methodName, tMarkerArrayMethod, DRETURN, true, () -> visitMethodBody(marker.wrapped()));
+            }
+            m.visitVarInsn(ALOAD, 0);
+            m.visitVarInsn(ALOAD, contextVar);
+            m.visitVarInsn(ILOAD, indexVar);
+            m.visitVarInsn(ILOAD, lengthVar);
+            m.visitMethodInsn(INVOKESPECIAL, kls.name, methodName, tMarkerArrayMethod.getDescriptor(), false);
+        }
+
+        /**
+         * NoiseChunk.NoiseInterpolator is driven by the interpolation loop of the NoiseChunk, so it is called directly
+         * through its concrete type.
+         */
+        private void visitInterpolatedMarker(int markerIdx) {
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerInterpolator" + markerIdx, tNoiseInterpolator.getDescriptor());
+            m.visitVarInsn(ALOAD, contextVar);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "computeInterpolated",
+                    Type.getMethodDescriptor(Type.DOUBLE_TYPE, tNoiseInterpolator, tFunctionContext),
+                    false);
+        }
+
+        /** NoiseChunk.FlatCache: reads the quart grid filled by the NoiseChunk, computes positions outside of it */
+        private void visitFlatCacheMarker(int markerIdx) {
+            final int vI = currentVar++;
+            final int vJ = currentVar++;
+            final int vValues = currentVar++;
+            final Label outside = new Label(), end = new Label();
+            // i = QuartPos.fromBlock(blockX) - firstNoiseX
+            visitCoordinate(AXIS_X);
+            m.visitInsn(ICONST_2);
+            m.visitInsn(ISHR);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerFlatQuartX" + markerIdx, "I");
+            m.visitInsn(ISUB);
+            m.visitVarInsn(ISTORE, vI);
+            // j = QuartPos.fromBlock(blockZ) - firstNoiseZ
+            visitCoordinate(AXIS_Z);
+            m.visitInsn(ICONST_2);
+            m.visitInsn(ISHR);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerFlatQuartZ" + markerIdx, "I");
+            m.visitInsn(ISUB);
+            m.visitVarInsn(ISTORE, vJ);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerFlatValues" + markerIdx, tFlatCacheValues.getDescriptor());
+            m.visitVarInsn(ASTORE, vValues);
+            // if (i >= 0 && j >= 0 && i < values.length && j < values.length)
+            m.visitVarInsn(ILOAD, vI);
+            m.visitJumpInsn(IFLT, outside);
+            m.visitVarInsn(ILOAD, vJ);
+            m.visitJumpInsn(IFLT, outside);
+            m.visitVarInsn(ILOAD, vI);
+            m.visitVarInsn(ALOAD, vValues);
+            m.visitInsn(ARRAYLENGTH);
+            m.visitJumpInsn(IF_ICMPGE, outside);
+            m.visitVarInsn(ILOAD, vJ);
+            m.visitVarInsn(ALOAD, vValues);
+            m.visitInsn(ARRAYLENGTH);
+            m.visitJumpInsn(IF_ICMPGE, outside);
+            m.visitVarInsn(ALOAD, vValues);
+            m.visitVarInsn(ILOAD, vI);
+            m.visitInsn(AALOAD);
+            m.visitVarInsn(ILOAD, vJ);
+            m.visitInsn(DALOAD);
+            m.visitJumpInsn(GOTO, end);
+            m.visitLabel(outside);
+            visitMarkerMethodCall(markerIdx);
+            m.visitLabel(end);
+        }
+
+        /**
+         * NoiseChunk.Cache2D: the last column is shared with every other user of the same NoiseChunk cache, so it is
+         * read and written through the cache object itself
+         */
+        private void visitCache2DMarker(int markerIdx) {
+            final int vPos = currentVar;
+            final int vValue = currentVar + 2;
+            currentVar += 4;
+            final Label miss = new Label(), end = new Label();
+            visitCoordinate(AXIS_X);
+            visitCoordinate(AXIS_Z);
+            m.visitMethodInsn(
+                    INVOKESTATIC, tUtils.getInternalName(), "chunkPosKey", tChunkPosKeyMethod.getDescriptor(), false);
+            m.visitInsn(DUP2);
+            m.visitVarInsn(LSTORE, vPos);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerCache2D" + markerIdx, tCache2D.getDescriptor());
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cache2DLastPos",
+                    Type.getMethodDescriptor(Type.LONG_TYPE, tCache2D),
+                    false);
+            m.visitInsn(LCMP);
+            m.visitJumpInsn(IFNE, miss);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerCache2D" + markerIdx, tCache2D.getDescriptor());
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cache2DLastValue",
+                    Type.getMethodDescriptor(Type.DOUBLE_TYPE, tCache2D),
+                    false);
+            m.visitJumpInsn(GOTO, end);
+            m.visitLabel(miss);
+            visitMarkerMethodCall(markerIdx);
+            m.visitInsn(DUP2);
+            m.visitVarInsn(DSTORE, vValue);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerCache2D" + markerIdx, tCache2D.getDescriptor());
+            m.visitVarInsn(LLOAD, vPos);
+            m.visitVarInsn(DLOAD, vValue);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cache2DStore",
+                    Type.getMethodDescriptor(Type.VOID_TYPE, tCache2D, Type.LONG_TYPE, Type.DOUBLE_TYPE),
+                    false);
+            m.visitLabel(end);
+        }
+
+        /**
+         * NoiseChunk.CacheOnce: the cache state is shared with every other user of the same NoiseChunk cache, so it is
+         * read and written through the cache object itself
+         */
+        private void visitCacheOnceMarker(int markerIdx) {
+            final int vValue = currentVar;
+            currentVar += 2;
+            final Label miss = new Label(), end = new Label();
+            visitCacheOnceAndOwner(markerIdx);
+            m.visitVarInsn(ALOAD, contextVar);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cacheOnceHit",
+                    Type.getMethodDescriptor(Type.BOOLEAN_TYPE, tCacheOnce, tNoiseChunk, tFunctionContext),
+                    false);
+            m.visitJumpInsn(IFEQ, miss);
+            visitCacheOnceAndOwner(markerIdx);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cacheOnceValue",
+                    Type.getMethodDescriptor(Type.DOUBLE_TYPE, tCacheOnce, tNoiseChunk),
+                    false);
+            m.visitJumpInsn(GOTO, end);
+            m.visitLabel(miss);
+            visitMarkerMethodCall(markerIdx);
+            m.visitInsn(DUP2);
+            m.visitVarInsn(DSTORE, vValue);
+            visitCacheOnceAndOwner(markerIdx);
+            m.visitVarInsn(ALOAD, contextVar);
+            m.visitVarInsn(DLOAD, vValue);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cacheOnceStore",
+                    Type.getMethodDescriptor(
+                            Type.VOID_TYPE, tCacheOnce, tNoiseChunk, tFunctionContext, Type.DOUBLE_TYPE),
+                    false);
+            m.visitLabel(end);
+        }
+
+        /**
+         * NoiseChunk.CacheOnce.fillArray: decides once per array whether the previously filled array can be reused,
+         * otherwise evaluates the wrapped function for every index and stores the array
+         */
+        private void visitCacheOnceArrayMarker(Node.Marker marker, int markerIdx) {
+            final int vValue = currentVar;
+            currentVar += 2;
+            final Label decided = new Label(), miss = new Label(), end = new Label();
+            m.visitVarInsn(ILOAD, indexVar);
+            m.visitJumpInsn(IFNE, decided);
+            m.visitVarInsn(ALOAD, 0);
+            visitCacheOnceAndOwner(markerIdx);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cacheOnceArrayHit",
+                    Type.getMethodDescriptor(Type.BOOLEAN_TYPE, tCacheOnce, tNoiseChunk),
+                    false);
+            m.visitFieldInsn(PUTFIELD, kls.name, "markerArrayHit" + markerIdx, "Z");
+            m.visitLabel(decided);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerArrayHit" + markerIdx, "Z");
+            m.visitJumpInsn(IFEQ, miss);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerCacheOnce" + markerIdx, tCacheOnce.getDescriptor());
+            m.visitVarInsn(ILOAD, indexVar);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cacheOnceArrayValue",
+                    Type.getMethodDescriptor(Type.DOUBLE_TYPE, tCacheOnce, Type.INT_TYPE),
+                    false);
+            m.visitJumpInsn(GOTO, end);
+            m.visitLabel(miss);
+            visitMarkerArrayMethodCall(marker, markerIdx);
+            m.visitInsn(DUP2);
+            m.visitVarInsn(DSTORE, vValue);
+            visitCacheOnceAndOwner(markerIdx);
+            m.visitVarInsn(ILOAD, indexVar);
+            m.visitVarInsn(ILOAD, lengthVar);
+            m.visitVarInsn(DLOAD, vValue);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cacheOnceStoreArray",
+                    Type.getMethodDescriptor(
+                            Type.VOID_TYPE, tCacheOnce, tNoiseChunk, Type.INT_TYPE, Type.INT_TYPE, Type.DOUBLE_TYPE),
+                    false);
+            m.visitLabel(end);
+        }
+
+        private void visitCacheOnceAndOwner(int markerIdx) {
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerCacheOnce" + markerIdx, tCacheOnce.getDescriptor());
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerOwner" + markerIdx, tNoiseChunk.getDescriptor());
+        }
+
+        /** NoiseChunk.CacheAllInCell: reads the per-cell buffer filled by the NoiseChunk */
+        private void visitCacheAllInCellMarker(int markerIdx) {
+            final int vIndex = currentVar++;
+            final Label miss = new Label(), end = new Label();
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerOwner" + markerIdx, tNoiseChunk.getDescriptor());
+            m.visitVarInsn(ALOAD, contextVar);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    "cellCacheIndex",
+                    Type.getMethodDescriptor(Type.INT_TYPE, tNoiseChunk, tFunctionContext),
+                    false);
+            m.visitInsn(DUP);
+            m.visitVarInsn(ISTORE, vIndex);
+            m.visitJumpInsn(IFLT, miss);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitFieldInsn(GETFIELD, kls.name, "markerCellValues" + markerIdx, tCellCacheValues.getDescriptor());
+            m.visitVarInsn(ILOAD, vIndex);
+            m.visitInsn(DALOAD);
+            m.visitJumpInsn(GOTO, end);
+            m.visitLabel(miss);
+            visitMarkerMethodCall(markerIdx);
+            m.visitLabel(end);
+        }
+
+        /**
+         * Generates code that pushes the float value of spline.apply(new Point(arg0)) onto the Java stack.
+         * Nested multipoint splines are compiled into their own private methods, so that every spline is emitted only
+         * once even though the interpolation evaluates each value in two intervals.
+         */
+        private void visitSpline(SplineValue spline) {
+            if (spline instanceof SplineValue.Constant c) {
+                m.visitLdcInsn(c.value());
+                return;
+            }
+            final SplineValue.Multipoint mp = (SplineValue.Multipoint) spline;
+            comprisedOps += mp.locations().length;
+
+            final int vCoord = currentVar++;
+            visitCompute(mp.coordinate());
+            m.visitInsn(D2F);
+            m.visitVarInsn(FSTORE, vCoord);
+
+            final Label end = new Label();
+            visitSplineIntervalSearch(mp, vCoord, end, 0, mp.locations().length);
+            m.visitLabel(end);
+        }
+
+        /**
+         * Unrolls Mth.binarySearch(0, locations.length, i -> coord < locations[i]) into a tree of branches, keeping the
+         * exact probe order of the vanilla search.
+         */
+        private void visitSplineIntervalSearch(
+                SplineValue.Multipoint mp, int vCoord, Label end, int min, int remaining) {
+            if (remaining <= 0) {
+                // the temporaries of an interval are free again in the next one
+                final int firstTemporary = currentVar;
+                visitSplineInterval(mp, vCoord, min - 1);
+                currentVar = firstTemporary;
+                m.visitJumpInsn(GOTO, end);
+                return;
+            }
+            final int half = remaining / 2;
+            final int probe = min + half;
+            final Label notBelow = new Label();
+            // if (coord < locations[probe])
+            m.visitVarInsn(FLOAD, vCoord);
+            m.visitLdcInsn(mp.locations()[probe]);
+            m.visitInsn(FCMPG);
+            m.visitJumpInsn(IFGE, notBelow);
+            visitSplineIntervalSearch(mp, vCoord, end, min, half);
+            m.visitLabel(notBelow);
+            visitSplineIntervalSearch(mp, vCoord, end, probe + 1, remaining - half - 1);
+        }
+
+        /** Emits the body of CubicSpline.Multipoint.apply for a statically known interval start */
+        private void visitSplineInterval(SplineValue.Multipoint mp, int vCoord, int interval) {
+            final float[] locations = mp.locations();
+            final float[] derivatives = mp.derivatives();
+            final int lastIndex = locations.length - 1;
+            if (interval < 0 || interval == lastIndex) {
+                // linearExtend
+                final int point = interval < 0 ? 0 : lastIndex;
+                visitSplineValue(mp.values().get(point));
+                final float derivative = derivatives[point];
+                if (derivative != 0.0F) {
+                    m.visitLdcInsn(derivative);
+                    m.visitVarInsn(FLOAD, vCoord);
+                    m.visitLdcInsn(locations[point]);
+                    m.visitInsn(FSUB);
+                    m.visitInsn(FMUL);
+                    m.visitInsn(FADD);
+                }
+                return;
+            }
+            final float start = locations[interval];
+            final float width = locations[interval + 1] - start;
+            final float startSlope = derivatives[interval] * width;
+            final float endSlope = -derivatives[interval + 1] * width;
+            final int vK = currentVar++;
+            final int vN = currentVar++;
+            final int vDelta = currentVar++;
+            final int vP = currentVar++;
+
+            // k = (coord - start) / width
+            m.visitVarInsn(FLOAD, vCoord);
+            m.visitLdcInsn(start);
+            m.visitInsn(FSUB);
+            m.visitLdcInsn(width);
+            m.visitInsn(FDIV);
+            m.visitVarInsn(FSTORE, vK);
+            // n, o - n
+            visitSplineValue(mp.values().get(interval));
+            m.visitInsn(DUP);
+            m.visitVarInsn(FSTORE, vN);
+            visitSplineValue(mp.values().get(interval + 1));
+            m.visitInsn(SWAP);
+            m.visitInsn(FSUB);
+            m.visitVarInsn(FSTORE, vDelta);
+            // lerp(k, n, o)
+            m.visitVarInsn(FLOAD, vN);
+            m.visitVarInsn(FLOAD, vK);
+            m.visitVarInsn(FLOAD, vDelta);
+            m.visitInsn(FMUL);
+            m.visitInsn(FADD);
+            // k * (1 - k)
+            m.visitVarInsn(FLOAD, vK);
+            m.visitInsn(FCONST_1);
+            m.visitVarInsn(FLOAD, vK);
+            m.visitInsn(FSUB);
+            m.visitInsn(FMUL);
+            // p = startSlope - (o - n), q = endSlope + (o - n), lerp(k, p, q)
+            m.visitLdcInsn(startSlope);
+            m.visitVarInsn(FLOAD, vDelta);
+            m.visitInsn(FSUB);
+            m.visitInsn(DUP);
+            m.visitVarInsn(FSTORE, vP);
+            m.visitVarInsn(FLOAD, vK);
+            m.visitLdcInsn(endSlope);
+            m.visitVarInsn(FLOAD, vDelta);
+            m.visitInsn(FADD);
+            m.visitVarInsn(FLOAD, vP);
+            m.visitInsn(FSUB);
+            m.visitInsn(FMUL);
+            m.visitInsn(FADD);
+            m.visitInsn(FMUL);
+            m.visitInsn(FADD);
+        }
+
+        /** Pushes the float value of a spline point, calling the spline's own method for nested multipoint splines */
+        private void visitSplineValue(SplineValue spline) {
+            if (spline instanceof SplineValue.Constant c) {
+                m.visitLdcInsn(c.value());
+                return;
+            }
+            final String methodName = addSplineMethod((SplineValue.Multipoint) spline);
+            m.visitVarInsn(ALOAD, 0);
+            m.visitVarInsn(ALOAD, contextVar);
+            m.visitMethodInsn(INVOKESPECIAL, kls.name, methodName, tSplineMethod.getDescriptor(), false);
+        }
+
+        /**
+         * Generates code that pushes the value of noise.getValue(x, y, z) onto the Java stack
+         * @param noise The noise to sample
+         * @param vX The local variable holding the x coordinate
+         * @param vY The local variable holding the y coordinate
+         * @param vZ The local variable holding the z coordinate
+         */
+        private void visitNoiseValue(DensityFunction.NoiseHolder noise, int vX, int vY, int vZ) {
+            if (!inlineNoise) {
+                final String storedField = addStoredNoise(noise);
+                m.visitVarInsn(ALOAD, 0);
+                m.visitFieldInsn(GETFIELD, kls.name, storedField, tNoiseHolder.getDescriptor());
+                m.visitVarInsn(DLOAD, vX);
+                m.visitVarInsn(DLOAD, vY);
+                m.visitVarInsn(DLOAD, vZ);
+                m.visitMethodInsn(
+                        INVOKESTATIC,
+                        tUtils.getInternalName(),
+                        "getNoiseValue",
+                        tGetNoiseValueMethod.getDescriptor(),
+                        false);
+                return;
+            }
+            final NormalNoise normalNoise = noise.noise();
+            if (normalNoise == null) {
+                // NoiseHolder.getValue
+                m.visitInsn(DCONST_0);
+                return;
+            }
+            // NormalNoise.getValue: (first(x, y, z) + second(x * f, y * f, z * f)) * valueFactor
+            visitPerlinNoiseValue(noise, normalNoise.first, 0, vX, vY, vZ);
+            final int vX2 = currentVar;
+            final int vY2 = currentVar + 2;
+            final int vZ2 = currentVar + 4;
+            currentVar += 6;
+            m.visitVarInsn(DLOAD, vX);
+            m.visitLdcInsn(NORMAL_NOISE_INPUT_FACTOR);
+            m.visitInsn(DMUL);
+            m.visitVarInsn(DSTORE, vX2);
+            m.visitVarInsn(DLOAD, vY);
+            m.visitLdcInsn(NORMAL_NOISE_INPUT_FACTOR);
+            m.visitInsn(DMUL);
+            m.visitVarInsn(DSTORE, vY2);
+            m.visitVarInsn(DLOAD, vZ);
+            m.visitLdcInsn(NORMAL_NOISE_INPUT_FACTOR);
+            m.visitInsn(DMUL);
+            m.visitVarInsn(DSTORE, vZ2);
+            visitPerlinNoiseValue(noise, normalNoise.second, 1, vX2, vY2, vZ2);
+            m.visitInsn(DADD);
+            m.visitLdcInsn(normalNoise.valueFactor);
+            m.visitInsn(DMUL);
+        }
+
+        /**
+         * Generates an unrolled PerlinNoise.getValue(x, y, z) octave loop, with the per-octave input factors and
+         * amplitudes baked in as constants. The octaves are sampled from the flattened tables of the NormalNoise.
+         */
+        private void visitPerlinNoiseValue(
+                DensityFunction.NoiseHolder noise, PerlinNoise perlin, int perlinIndex, int vX, int vY, int vZ) {
+            double inputFactor = perlin.lowestFreqInputFactor;
+            double valueFactor = perlin.lowestFreqValueFactor;
+            m.visitInsn(DCONST_0);
+            for (int i = 0; i < perlin.noiseLevels.length; i++) {
+                final double amplitude = perlin.amplitudes.getDouble(i);
+                // PerlinNoise does not create octaves with zero amplitude, they never contribute to the sum
+                if (perlin.noiseLevels[i] != null && amplitude != 0.0) {
+                    final String flatNoiseField = addStoredFlatNoise(noise);
+                    // d += amplitude * octave.noise(wrap(x * e), wrap(y * e), wrap(z * e)) * f
+                    m.visitLdcInsn(amplitude);
+                    m.visitVarInsn(ALOAD, 0);
+                    m.visitFieldInsn(GETFIELD, kls.name, flatNoiseField, tFlatNoise.getDescriptor());
+                    m.visitLdcInsn(FlatNoise.index(noise.noise(), perlinIndex, i));
+                    visitWrappedOctaveCoordinate(vX, inputFactor);
+                    visitWrappedOctaveCoordinate(vY, inputFactor);
+                    visitWrappedOctaveCoordinate(vZ, inputFactor);
+                    m.visitMethodInsn(
+                            INVOKEVIRTUAL,
+                            tFlatNoise.getInternalName(),
+                            "sample",
+                            tSampleFlatOctaveMethod.getDescriptor(),
+                            false);
+                    m.visitInsn(DMUL);
+                    m.visitLdcInsn(valueFactor);
+                    m.visitInsn(DMUL);
+                    m.visitInsn(DADD);
+                }
+                inputFactor *= 2.0;
+                valueFactor /= 2.0;
+            }
+        }
+
+        private void visitWrappedOctaveCoordinate(int var, double inputFactor) {
+            m.visitVarInsn(DLOAD, var);
+            m.visitLdcInsn(inputFactor);
+            m.visitInsn(DMUL);
+            m.visitMethodInsn(INVOKESTATIC, tUtils.getInternalName(), "wrap", "(D)D", false);
+        }
+
+        /**
+         * Generates code that pushes the value of the whole expression computed by a method onto the Java stack,
+         * evaluating the pure subtrees it repeats only once
+         */
+        public void visitMethodBody(Node root) {
+            prepareMethodBody(root);
+            allocateCoordinates(root);
+            visitCoordinateReads();
+            visitCompute(root);
+        }
+
+        /**
+         * Reserves the locals of the repeated subtrees of the expression generated next into the current method, and
+         * chooses the subtrees to split off so that the method stays below the size limit
+         */
+        public void prepareMethodBody(Node root) {
+            countOccurrences(root);
+            occurrences.forEach((node, count) -> {
+                if (count > 1) {
+                    valueSlots.put(node, currentVar);
+                    currentVar += 2;
+                }
+            });
+            planSplits(root);
+        }
+
+        /**
+         * Splits off the largest children of every node whose code would exceed the size limit, bottom-up so that
+         * every split subtree is small enough for its own method
+         * @return The estimated size of the code of the node, after splitting
+         */
+        private int planSplits(Node node) {
+            if (leafArrays.containsKey(node)) {
+                // read from its array
+                return 5;
+            }
+            final List<Node> children = inlineChildren(node);
+            final int[] sizes = new int[children.size()];
+            int size = ownCodeSize(node);
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = planSplits(children.get(i));
+                size += sizes[i];
+            }
+            while (size > methodSizeLimit) {
+                int largest = -1;
+                for (int i = 0; i < sizes.length; i++) {
+                    if (sizes[i] > PART_CALL_SIZE && (largest < 0 || sizes[i] > sizes[largest])) {
+                        largest = i;
                     }
-                    case MUL -> {
-                        final int a1 = currentVar;
-                        currentVar += 2;
-                        m.visitInsn(DUP2);
-                        m.visitVarInsn(DSTORE, a1);
+                }
+                if (largest < 0) {
+                    break;
+                }
+                splitNodes.add(children.get(largest));
+                size -= sizes[largest] - PART_CALL_SIZE;
+                sizes[largest] = PART_CALL_SIZE;
+            }
+            return size;
+        }
 
-                        // if (a1 == 0) { 0 } else { a1 * a2 }
-                        m.visitInsn(DCONST_0);
-                        m.visitInsn(DCMPL);
-                        final Label ifNotZero = new Label();
-                        final Label endFn = new Label();
-                        m.visitJumpInsn(IFNE, ifNotZero);
-                        // equal 0
-                        m.visitInsn(DCONST_0);
-                        m.visitVarInsn(DSTORE, a1); // overload a1 with the output value
-                        m.visitJumpInsn(GOTO, endFn);
-                        // not equal 0
-                        m.visitLabel(ifNotZero);
-                        visitCompute(df.argument2());
-
-                        m.visitVarInsn(DLOAD, a1);
-                        m.visitInsn(DUP2_X2);
-                        m.visitInsn(POP2); // (a2, a1) -> (a1, a2)
-                        m.visitInsn(DMUL); // a1 * a2
-                        m.visitVarInsn(DSTORE, a1); // overload a1 with the output value
-                        m.visitLabel(endFn);
-                        m.visitVarInsn(DLOAD, a1);
+        /** @return The children whose code is generated into the same method as the node */
+        private static List<Node> inlineChildren(Node node) {
+            if (node instanceof Node.Marker) {
+                return List.of();
+            } else if (node instanceof Node.Spline spline) {
+                // nested splines have their own methods
+                return spline.spline() instanceof SplineValue.Multipoint mp ? List.of(mp.coordinate()) : List.of();
+            }
+            return node.children();
+        }
+
+        /** The size of the code calling the method of a split subtree */
+        private static final int PART_CALL_SIZE = 10;
+
+        /** @return A rough estimate of the bytecode size of the node itself, without its inline children */
+        private static int ownCodeSize(Node gnode) {
+            if (gnode instanceof Node.Noise node) {
+                return 40 + noiseCodeSize(node.noise());
+            } else if (gnode instanceof Node.ShiftedNoise node) {
+                return 50 + noiseCodeSize(node.noise());
+            } else if (gnode instanceof Node.WeirdScaledSampler node) {
+                // the rarity branches and the scaled coordinates
+                return 50 + 15 * node.thresholds().length + noiseCodeSize(node.noise());
+            } else if (gnode instanceof Node.Spline node) {
+                // the interval search and the hermite interpolation of every point
+                return node.spline() instanceof SplineValue.Multipoint mp ? 10 + 90 * mp.locations().length : 5;
+            } else if (gnode instanceof Node.Marker) {
+                // the switch over the marker modes and the code of each mode
+                return 160;
+            } else if (gnode instanceof Node.EndIslands) {
+                // the islands and the fallback call
+                return 40;
+            } else if (gnode instanceof Node.OldBlendedNoise node) {
+                // the coordinates, the fallback call and every sampled octave
+                return 100 + 45 * blendedOctaveCount(node.function());
+            } else if (gnode instanceof Node.Mul || gnode instanceof Node.Min || gnode instanceof Node.Max) {
+                return 25;
+            } else if (gnode instanceof Node.RangeChoice || gnode instanceof Node.Squeeze) {
+                return 30;
+            }
+            return 15;
+        }
+
+        private static int noiseCodeSize(DensityFunction.NoiseHolder noise) {
+            final NormalNoise normalNoise = noise.noise();
+            if (!inlineNoise || normalNoise == null) {
+                return 15;
+            }
+            return 40 + 50 * (octaveCount(normalNoise.first) + octaveCount(normalNoise.second));
+        }
+
+        /** The octaves BlendedNoise.compute samples from its limit noises and from its main noise */
+        private static final int BLENDED_LIMIT_OCTAVES = 16, BLENDED_MAIN_OCTAVES = 8;
+
+        private static int blendedOctaveCount(BlendedNoise noise) {
+            int count = 0;
+            for (int o = 0; o < BLENDED_LIMIT_OCTAVES; o++) {
+                count += noise.minLimitNoise.getOctaveNoise(o) != null ? 1 : 0;
+                count += noise.maxLimitNoise.getOctaveNoise(o) != null ? 1 : 0;
+            }
+            for (int o = 0; o < BLENDED_MAIN_OCTAVES; o++) {
+                count += noise.mainNoise.getOctaveNoise(o) != null ? 1 : 0;
+            }
+            return count;
+        }
+
+        private static int octaveCount(PerlinNoise perlin) {
+            int count = 0;
+            for (int i = 0; i < perlin.noiseLevels.length; i++) {
+                if (perlin.noiseLevels[i] != null && perlin.amplitudes.getDouble(i) != 0.0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Reserves locals for the block coordinates the code of the expression reads, so that each is read from the
+         * context once per evaluation instead of once per node
+         */
+        public void allocateCoordinates(Node root) {
+            final boolean[] used = new boolean[3];
+            if (!columnValues.isEmpty()) {
+                // the column check reads X and Z for every index
+                used[AXIS_X] = true;
+                used[AXIS_Z] = true;
+            }
+            findCoordinates(root, used);
+            for (int axis = 0; axis < 3; axis++) {
+                coordinateVars[axis] = used[axis] ? currentVar++ : -1;
+            }
+        }
+
+        private void findCoordinates(Node node, boolean[] used) {
+            if (columnValues.containsKey(node) || splitNodes.contains(node)) {
+                // computed once per column, or in a method of its own
+                return;
+            }
+            if (node instanceof Node.Noise
+                    || node instanceof Node.ShiftedNoise
+                    || node instanceof Node.WeirdScaledSampler
+                    || node instanceof Node.OldBlendedNoise) {
+                Arrays.fill(used, true);
+            } else if (node instanceof Node.YClampedGradient) {
+                used[AXIS_Y] = true;
+            } else if (node instanceof Node.EndIslands
+                    || (node instanceof Node.Marker marker
+                            && (marker.type() == DensityFunctions.Marker.Type.FlatCache
+                                    || marker.type() == DensityFunctions.Marker.Type.Cache2D))) {
+                used[AXIS_X] = true;
+                used[AXIS_Z] = true;
+            }
+            for (Node child : inlineChildren(node)) {
+                findCoordinates(child, used);
+            }
+        }
+
+        /** Reads the allocated coordinates from the context, before any branch of the body */
+        public void visitCoordinateReads() {
+            for (int axis = 0; axis < 3; axis++) {
+                if (coordinateVars[axis] >= 0) {
+                    m.visitVarInsn(ALOAD, contextVar);
+                    m.visitMethodInsn(
+                            INVOKESTATIC,
+                            tUtils.getInternalName(),
+                            coordinateGetters[axis],
+                            tGetFctxCoordMethod.getDescriptor(),
+                            false);
+                    m.visitVarInsn(ISTORE, coordinateVars[axis]);
+                }
+            }
+        }
+
+        /** Pushes a block coordinate of the context as an int */
+        private void visitCoordinate(int axis) {
+            if (coordinateVars[axis] >= 0) {
+                m.visitVarInsn(ILOAD, coordinateVars[axis]);
+                return;
+            }
+            m.visitVarInsn(ALOAD, contextVar);
+            m.visitMethodInsn(
+                    INVOKESTATIC,
+                    tUtils.getInternalName(),
+                    coordinateGetters[axis],
+                    tGetFctxCoordMethod.getDescriptor(),
+                    false);
+        }
+
+        /**
+         * @return Whether the node is computed lane-wise by the vector fillArray. The arguments vanilla only computes
+         *     for some indices are computed for all of them, so they must be lane-wise arithmetic of constants.
+         */
+        static boolean isVectorNode(Node node) {
+            if (node instanceof Node.Mul mul) {
+                return isVectorOnly(mul.b());
+            } else if (node instanceof Node.Min min) {
+                return isVectorOnly(min.b());
+            } else if (node instanceof Node.Max max) {
+                return isVectorOnly(max.b());
+            } else if (node instanceof Node.RangeChoice choice) {
+                return isVectorOnly(choice.whenInRange()) && isVectorOnly(choice.whenOutOfRange());
+            }
+            return node instanceof Node.Const
+                    || node instanceof Node.AddConst
+                    || node instanceof Node.MulConst
+                    || node instanceof Node.Add
+                    || node instanceof Node.Clamp
+                    || node instanceof Node.Mapped
+                    || node instanceof Node.Squeeze;
+        }
+
+        private static boolean isVectorOnly(Node node) {
+            return isVectorNode(node) && node.children().stream().allMatch(Context::isVectorOnly);
+        }
+
+        /** @return The distinct subtrees below the lane-wise arithmetic at the top of the tree, in evaluation order */
+        static List<Node> vectorLeaves(Node root) {
+            final LinkedHashMap<Node, Boolean> leaves = new LinkedHashMap<>();
+            findVectorLeaves(root, leaves);
+            return new ArrayList<>(leaves.keySet());
+        }
+
+        private static void findVectorLeaves(Node node, LinkedHashMap<Node, Boolean> leaves) {
+            if (!isVectorNode(node)) {
+                leaves.put(node, true);
+                return;
+            }
+            for (Node child : node.children()) {
+                findVectorLeaves(child, leaves);
+            }
+        }
+
+        /**
+         * @return Whether fillArray samples the noise for all the indices at once with the batched kernel. The noises
+         *     that do not depend on Y are sampled once per column instead.
+         */
+        static boolean isBatchedNoise(Node node) {
+            return batchNoise
+                    && (node instanceof Node.Noise || node instanceof Node.ShiftedNoise)
+                    && (!hoistColumns || dependsOnY(node));
+        }
+
+        /**
+         * @return The distinct batched noises the scalar fillArray loop evaluates for every index, in evaluation order.
+         *     Their shifts are computed in a loop of their own, so they must not touch the NoiseChunk caches.
+         */
+        static List<Node> batchedNoises(Node root) {
+            final LinkedHashSet<Node> noises = new LinkedHashSet<>();
+            findBatchedNoises(root, noises);
+            return new ArrayList<>(noises);
+        }
+
+        private static void findBatchedNoises(Node node, LinkedHashSet<Node> noises) {
+            if (isBatchedNoise(node) && isPure(node)) {
+                noises.add(node);
+                return;
+            }
+            // the operands evaluated only for some indices are left to the loop
+            if (node instanceof Node.Mul mul) {
+                findBatchedNoises(mul.a(), noises);
+            } else if (node instanceof Node.Min min) {
+                findBatchedNoises(min.a(), noises);
+            } else if (node instanceof Node.Max max) {
+                findBatchedNoises(max.a(), noises);
+            } else if (node instanceof Node.RangeChoice choice) {
+                findBatchedNoises(choice.input(), noises);
+            } else {
+                inlineChildren(node).forEach(child -> findBatchedNoises(child, noises));
+            }
+        }
+
+        /** Generates a private method filling an array with the values of a subtree, with the scalar fillArray loop */
+        private String addFillArrayPart(Node node) {
+            final String methodName = "fillArrayPart" + fillArrayParts++;
+            final MethodNode method =
+                    new MethodNode(ACC_PRIVATE, methodName, tFillArrayMethod.getDescriptor(), null, null);
+            kls.methods.add(method);
+            generateNestedMethod(() -> populateFillArray(node, this, method));
+            return methodName;
+        }
+
+        static DensityFunction.NoiseHolder noiseOf(Node node) {
+            return node instanceof Node.Noise noise ? noise.noise() : ((Node.ShiftedNoise) node).noise();
+        }
+
+        /** Stores the coordinates a Noise or ShiftedNoise samples at for the current index into the arrays */
+        private void visitNoiseCoordinates(Node gnode, int vXs, int vYs, int vZs) {
+            final int[] arrays = {vXs, vYs, vZs};
+            for (int axis = 0; axis < 3; axis++) {
+                m.visitVarInsn(ALOAD, arrays[axis]);
+                m.visitVarInsn(ILOAD, indexVar);
+                if (gnode instanceof Node.Noise node) {
+                    visitCoordinate(axis);
+                    m.visitInsn(I2D);
+                    m.visitLdcInsn(axis == AXIS_Y ? node.yScale() : node.xzScale());
+                    m.visitInsn(DMUL);
+                } else {
+                    final Node.ShiftedNoise node = (Node.ShiftedNoise) gnode;
+                    visitCompute(
+                            switch (axis) {
+                                case AXIS_X -> node.shiftX();
+                                case AXIS_Y -> node.shiftY();
+                                default -> node.shiftZ();
+                            });
+                    visitCoordinate(axis);
+                    m.visitInsn(I2D);
+                    m.visitLdcInsn(axis == AXIS_Y ? node.yScale() : node.xzScale());
+                    m.visitInsn(DMUL);
+                    m.visitInsn(DADD);
+                }
+                m.visitInsn(DASTORE);
+            }
+        }
+
+        /** Pushes a DoubleVector of the values of the node for the lanes starting at the current index */
+        private void visitVector(Node gnode) {
+            final int firstTemporary = currentVar;
+            final Integer leafArray = leafArrays.get(gnode);
+            if (leafArray != null) {
+                visitVectorSpecies();
+                m.visitVarInsn(ALOAD, leafArray);
+                m.visitVarInsn(ILOAD, indexVar);
+                m.visitMethodInsn(
+                        INVOKESTATIC,
+                        tDoubleVector.getInternalName(),
+                        "fromArray",
+                        Type.getMethodDescriptor(tDoubleVector, tVectorSpecies, tDoubleArr, Type.INT_TYPE),
+                        false);
+            } else if (gnode instanceof Node.Const node) {
+                visitVectorSpecies();
+                m.visitLdcInsn(node.value());
+                m.visitMethodInsn(
+                        INVOKESTATIC,
+                        tDoubleVector.getInternalName(),
+                        "broadcast",
+                        Type.getMethodDescriptor(tDoubleVector, tVectorSpecies, Type.DOUBLE_TYPE),
+                        false);
+            } else if (gnode instanceof Node.AddConst node) {
+                visitVector(node.input());
+                m.visitLdcInsn(node.offset());
+                visitVectorOp("add", Type.DOUBLE_TYPE);
+            } else if (gnode instanceof Node.MulConst node) {
+                visitVector(node.input());
+                m.visitLdcInsn(node.factor());
+                visitVectorOp("mul", Type.DOUBLE_TYPE);
+            } else if (gnode instanceof Node.Add node) {
+                visitVector(node.a());
+                visitVector(node.b());
+                visitVectorOp("add", tVector);
+            } else if (gnode instanceof Node.Mul node) {
+                // a == 0 ? 0 : a * b
+                final int vA = visitVectorToLocal(node.a());
+                m.visitVarInsn(ALOAD, vA);
+                visitVector(node.b());
+                visitVectorOp("mul", tVector);
+                m.visitInsn(DCONST_0);
+                m.visitVarInsn(ALOAD, vA);
+                m.visitInsn(DCONST_0);
+                visitVectorCompare("eq", Type.DOUBLE_TYPE);
+                visitVectorBlend(Type.DOUBLE_TYPE);
+            } else if (gnode instanceof Node.Min node) {
+                // a < bMin ? a : min(a, b)
+                final int vA = visitVectorToLocal(node.a());
+                m.visitVarInsn(ALOAD, vA);
+                visitVector(node.b());
+                visitVectorOp("min", tVector);
+                m.visitVarInsn(ALOAD, vA);
+                m.visitVarInsn(ALOAD, vA);
+                m.visitLdcInsn(node.bMin());
+                visitVectorCompare("lt", Type.DOUBLE_TYPE);
+                visitVectorBlend(tVector);
+            } else if (gnode instanceof Node.Max node) {
+                // a > bMax ? a : max(a, b)
+                final int vA = visitVectorToLocal(node.a());
+                m.visitVarInsn(ALOAD, vA);
+                visitVector(node.b());
+                visitVectorOp("max", tVector);
+                m.visitVarInsn(ALOAD, vA);
+                m.visitVarInsn(ALOAD, vA);
+                visitVectorComparison("GT");
+                m.visitLdcInsn(node.bMax());
+                visitVectorCompare("compare", tVectorComparison, Type.DOUBLE_TYPE);
+                visitVectorBlend(tVector);
+            } else if (gnode instanceof Node.Clamp node) {
+                // Mth.clamp: value < min ? min : min(value, max)
+                final int vValue = visitVectorToLocal(node.input());
+                m.visitVarInsn(ALOAD, vValue);
+                m.visitLdcInsn(node.max());
+                visitVectorOp("min", Type.DOUBLE_TYPE);
+                m.visitLdcInsn(node.min());
+                m.visitVarInsn(ALOAD, vValue);
+                m.visitLdcInsn(node.min());
+                visitVectorCompare("lt", Type.DOUBLE_TYPE);
+                visitVectorBlend(Type.DOUBLE_TYPE);
+            } else if (gnode instanceof Node.Mapped node) {
+                switch (node.type()) {
+                    case ABS -> {
+                        visitVector(node.input());
+                        visitVectorOp("abs");
                     }
-                    case MIN, MAX -> {
-                        final boolean isMin = df.type() == DensityFunctions.TwoArgumentSimpleFunction.Type.MIN;
-                        final double boundary = isMin
-                                ? df.argument2().minValue()
-                                : df.argument2().maxValue();
-                        final int a1 = currentVar;
-                        currentVar += 2;
-                        m.visitInsn(DUP2);
-                        m.visitVarInsn(DSTORE, a1);
-
-                        // if (a1 <> boundary) { a1 } else { Math.minmax(a1, a2) }
-                        m.visitLdcInsn(boundary);
-                        m.visitInsn(DCMPL);
-                        final Label endFn = new Label();
-                        m.visitJumpInsn(isMin ? IFLT : IFGT, endFn);
-                        // beyond boundary - short circuit (goto endFn)
-                        // not beyond boundary; compute a2 and the min/max
-                        visitCompute(df.argument2());
-
-                        m.visitVarInsn(DLOAD, a1);
-                        m.visitInsn(DUP2_X2);
-                        m.visitInsn(POP2); // (a2, a1) -> (a1, a2)
-                        m.visitMethodInsn(
-                                INVOKESTATIC, Type.getInternalName(Math.class), isMin ? "min" : "max", "(DD)D", false);
-                        m.visitVarInsn(DSTORE, a1); // overload a1 with the output value
-                        m.visitLabel(endFn);
-                        m.visitVarInsn(DLOAD, a1);
+                    case SQUARE -> {
+                        visitVector(node.input());
+                        m.visitInsn(DUP);
+                        visitVectorOp("mul", tVector);
                     }
-                    default -> throw new IllegalStateException(df.type().getSerializedName());
+                    case CUBE -> {
+                        visitVector(node.input());
+                        m.visitInsn(DUP);
+                        m.visitInsn(DUP);
+                        visitVectorOp("mul", tVector);
+                        visitVectorOp("mul", tVector);
+                    }
+                    case HALF_NEGATIVE, QUARTER_NEGATIVE -> {
+                        // d > 0 ? d : d * factor
+                        final int vValue = visitVectorToLocal(node.input());
+                        m.visitVarInsn(ALOAD, vValue);
+                        m.visitLdcInsn(node.type() == DensityFunctions.Mapped.Type.HALF_NEGATIVE ? 0.5D : 0.25D);
+                        visitVectorOp("mul", Type.DOUBLE_TYPE);
+                        m.visitVarInsn(ALOAD, vValue);
+                        m.visitVarInsn(ALOAD, vValue);
+                        visitVectorComparison("GT");
+                        m.visitInsn(DCONST_0);
+                        visitVectorCompare("compare", tVectorComparison, Type.DOUBLE_TYPE);
+                        visitVectorBlend(tVector);
+                    }
+                    case SQUEEZE -> throw new IllegalStateException("SQUEEZE is built as Squeeze(Clamp(input))");
+                }
+            } else if (gnode instanceof Node.Squeeze node) {
+                // e / 2.0 - e * e * e / 24.0
+                final int vE = visitVectorToLocal(node.input());
+                m.visitVarInsn(ALOAD, vE);
+                m.visitLdcInsn(2.0D);
+                visitVectorOp("div", Type.DOUBLE_TYPE);
+                m.visitVarInsn(ALOAD, vE);
+                m.visitVarInsn(ALOAD, vE);
+                visitVectorOp("mul", tVector);
+                m.visitVarInsn(ALOAD, vE);
+                visitVectorOp("mul", tVector);
+                m.visitLdcInsn(24.0D);
+                visitVectorOp("div", Type.DOUBLE_TYPE);
+                visitVectorOp("sub", tVector);
+            } else if (gnode instanceof Node.RangeChoice node) {
+                // input >= minInclusive && input < maxExclusive ? whenInRange : whenOutOfRange, NaN is out of range
+                final int vInput = visitVectorToLocal(node.input());
+                visitVector(node.whenOutOfRange());
+                visitVector(node.whenInRange());
+                m.visitVarInsn(ALOAD, vInput);
+                visitVectorComparison("GE");
+                m.visitLdcInsn(node.minInclusive());
+                visitVectorCompare("compare", tVectorComparison, Type.DOUBLE_TYPE);
+                m.visitVarInsn(ALOAD, vInput);
+                m.visitLdcInsn(node.maxExclusive());
+                visitVectorCompare("lt", Type.DOUBLE_TYPE);
+                m.visitMethodInsn(
+                        INVOKEVIRTUAL,
+                        tVectorMask.getInternalName(),
+                        "and",
+                        Type.getMethodDescriptor(tVectorMask, tVectorMask),
+                        false);
+                visitVectorBlend(tVector);
+            } else {
+                throw new IllegalStateException("Not computed lane-wise: " + gnode);
+            }
+            currentVar = firstTemporary;
+        }
+
+        private int visitVectorToLocal(Node node) {
+            visitVector(node);
+            final int vVector = currentVar++;
+            m.visitVarInsn(ASTORE, vVector);
+            return vVector;
+        }
+
+        private void visitVectorSpecies() {
+            m.visitFieldInsn(
+                    GETSTATIC, tDoubleVector.getInternalName(), "SPECIES_PREFERRED", tVectorSpecies.getDescriptor());
+        }
+
+        private void visitVectorComparison(String name) {
+            m.visitFieldInsn(GETSTATIC, tVectorOperators.getInternalName(), name, tVectorComparison.getDescriptor());
+        }
+
+        /** Calls a lane-wise operation of DoubleVector returning a DoubleVector */
+        private void visitVectorOp(String name, Type... argumentTypes) {
+            m.visitMethodInsn(
+                    INVOKEVIRTUAL,
+                    tDoubleVector.getInternalName(),
+                    name,
+                    Type.getMethodDescriptor(tDoubleVector, argumentTypes),
+                    false);
+        }
+
+        /** Calls a lane-wise comparison of DoubleVector returning a VectorMask */
+        private void visitVectorCompare(String name, Type... argumentTypes) {
+            m.visitMethodInsn(
+                    INVOKEVIRTUAL,
+                    tDoubleVector.getInternalName(),
+                    name,
+                    Type.getMethodDescriptor(tVectorMask, argumentTypes),
+                    false);
+        }
+
+        /** Calls DoubleVector.blend, which takes the lanes of the argument where the mask is set */
+        private void visitVectorBlend(Type argumentType) {
+            visitVectorOp("blend", argumentType, tVectorMask);
+        }
+
+        /**
+         * Pushes the value of a split subtree by calling its method, which is generated for the first call. In a
+         * fillArray loop the method takes the loop's index and length, so that markers are filled as arrays in it too.
+         */
+        private void visitPartMethodCall(Node node) {
+            final boolean inArray = arrayMode;
+            final HashMap<Node, String> methods = inArray ? partArrayMethods : partMethods;
+            String methodName = methods.get(node);
+            if (methodName == null) {
+                methodName = (inArray ? "partArray" : "part") + methods.size();
+                methods.put(node, methodName);
+                generatePrivateMethod(
+                        methodName,
+                        inArray ? tMarkerArrayMethod : tMarkerMethod,
+                        DRETURN,
+                        inArray,
+                        () -> visitMethodBody(node));
+            }
+            m.visitVarInsn(ALOAD, 0);
+            m.visitVarInsn(ALOAD, contextVar);
+            if (inArray) {
+                m.visitVarInsn(ILOAD, indexVar);
+                m.visitVarInsn(ILOAD, lengthVar);
+            }
+            m.visitMethodInsn(
+                    INVOKESPECIAL,
+                    kls.name,
+                    methodName,
+                    (inArray ? tMarkerArrayMethod : tMarkerMethod).getDescriptor(),
+                    false);
+        }
+
+        /**
+         * Counts the pure subtrees evaluated by the code of the current method, the wrapped functions of markers and
+         * nested splines are generated into methods of their own
+         */
+        private void countOccurrences(Node node) {
+            if (!(node instanceof Node.Const) && isPure(node) && occurrences.merge(node, 1, Integer::sum) > 1) {
+                // every node below is repeated along with this one
+                return;
+            }
+            if (node instanceof Node.Marker) {
+                return;
+            } else if (node instanceof Node.Spline spline) {
+                if (spline.spline() instanceof SplineValue.Multipoint mp) {
+                    countOccurrences(mp.coordinate());
+                }
+                return;
+            }
+            node.children().forEach(this::countOccurrences);
+        }
+
+        /**
+         * @return Whether the value of the expression can change with the Y coordinate of the position. Noise with a Y
+         *     scale of 0 samples at Y 0 or -0, which the random offsets of ImprovedNoise make the same position.
+         */
+        static boolean dependsOnY(Node gnode) {
+            if (gnode instanceof Node.YClampedGradient
+                    || gnode instanceof Node.BlendDensity
+                    || gnode instanceof Node.WeirdScaledSampler
+                    || gnode instanceof Node.OldBlendedNoise) {
+                return true;
+            } else if (gnode instanceof Node.Noise node) {
+                return node.yScale() != 0.0;
+            } else if (gnode instanceof Node.ShiftedNoise node && node.yScale() != 0.0) {
+                return true;
+            }
+            return gnode.children().stream().anyMatch(Context::dependsOnY);
+        }
+
+        /**
+         * Allocates the locals of the subtrees of a fillArray loop that do not depend on Y, must be called before the
+         * loop. The largest such subtrees are chosen, they are computed when first needed in a column.
+         */
+        public void beginColumnHoisting(Node root) {
+            if (!hoistColumns) {
+                return;
+            }
+            findColumnValues(root);
+            if (columnValues.isEmpty()) {
+                return;
+            }
+            columnXVar = currentVar++;
+            columnZVar = currentVar++;
+            // no value is valid yet, so the initial column does not matter
+            m.visitInsn(ICONST_0);
+            m.visitVarInsn(ISTORE, columnXVar);
+            m.visitInsn(ICONST_0);
+            m.visitVarInsn(ISTORE, columnZVar);
+            for (ColumnValue value : columnValues.values()) {
+                m.visitInsn(DCONST_0);
+                m.visitVarInsn(DSTORE, value.valueVar());
+                m.visitInsn(ICONST_0);
+                m.visitVarInsn(ISTORE, value.validVar());
+            }
+        }
+
+        private void findColumnValues(Node node) {
+            if (node instanceof Node.Const || columnValues.containsKey(node)) {
+                return;
+            }
+            if (isPure(node) && !dependsOnY(node)) {
+                columnValues.put(node, new ColumnValue(currentVar, currentVar + 2));
+                currentVar += 3;
+                return;
+            }
+            if (node instanceof Node.Marker) {
+                return;
+            } else if (node instanceof Node.Spline spline) {
+                if (spline.spline() instanceof SplineValue.Multipoint mp) {
+                    findColumnValues(mp.coordinate());
                 }
-            } else if (gdf instanceof DensityFunctions.BlendDensity df) {
-                visitCompute(df.input());
-                m.visitVarInsn(ALOAD, 1);
+                return;
+            }
+            node.children().forEach(this::findColumnValues);
+        }
+
+        /**
+         * Invalidates the column values when the context of the current index is in a different column than the last
+         * one, NoiseChunk fills arrays both along a column and across the cells of a chunk
+         */
+        public void visitColumnCheck() {
+            if (columnValues.isEmpty()) {
+                return;
+            }
+            final Label newColumn = new Label(), sameColumn = new Label();
+            visitCoordinate(AXIS_X);
+            m.visitVarInsn(ILOAD, columnXVar);
+            m.visitJumpInsn(IF_ICMPNE, newColumn);
+            visitCoordinate(AXIS_Z);
+            m.visitVarInsn(ILOAD, columnZVar);
+            m.visitJumpInsn(IF_ICMPEQ, sameColumn);
+            m.visitLabel(newColumn);
+            visitCoordinate(AXIS_X);
+            m.visitVarInsn(ISTORE, columnXVar);
+            visitCoordinate(AXIS_Z);
+            m.visitVarInsn(ISTORE, columnZVar);
+            for (ColumnValue value : columnValues.values()) {
+                m.visitInsn(ICONST_0);
+                m.visitVarInsn(ISTORE, value.validVar());
+            }
+            m.visitLabel(sameColumn);
+        }
+
+        /** Pushes a column value, computing it first if it is not valid for the current column yet */
+        private void visitColumnValue(Node node, ColumnValue value) {
+            final Label valid = new Label();
+            m.visitVarInsn(ILOAD, value.validVar());
+            m.visitJumpInsn(IFNE, valid);
+            // only computed in the first cell of the column that needs it
+            final HashMap<Node, Integer> outerValueLocals = new HashMap<>(valueLocals);
+            visitNodeValue(node);
+            valueLocals = outerValueLocals;
+            m.visitVarInsn(DSTORE, value.valueVar());
+            m.visitInsn(ICONST_1);
+            m.visitVarInsn(ISTORE, value.validVar());
+            m.visitLabel(valid);
+            m.visitVarInsn(DLOAD, value.valueVar());
+        }
+
+        /**
+         * @return Whether the value of the expression depends only on the position, so it can be computed once for all
+         *     of its occurrences. Markers change the state of the NoiseChunk caches, other functions may be stateful.
+         */
+        private static boolean isPure(Node node) {
+            return !(node instanceof Node.Marker || node instanceof Node.Shared || node instanceof Node.Opaque)
+                    && node.children().stream().allMatch(Context::isPure);
+        }
+
+        /**
+         * Generates code that pushes the value of the expression at arg0 onto the Java stack, repeated subtrees are
+         * kept in a local variable after their first evaluation
+         * @param node The expression to recursively translate
+         */
+        public void visitCompute(Node node) {
+            final Integer leafArray = leafArrays.get(node);
+            if (leafArray != null) {
+                m.visitVarInsn(ALOAD, leafArray);
+                m.visitVarInsn(ILOAD, indexVar);
+                m.visitInsn(DALOAD);
+                return;
+            }
+            final Integer valueLocal = valueLocals.get(node);
+            if (valueLocal != null) {
+                m.visitVarInsn(DLOAD, valueLocal);
+                return;
+            }
+            final ColumnValue columnValue = columnValues.get(node);
+            if (columnValue != null) {
+                visitColumnValue(node, columnValue);
+                return;
+            }
+            visitNodeValue(node);
+            final Integer valueSlot = valueSlots.get(node);
+            if (valueSlot != null) {
+                m.visitInsn(DUP2);
+                m.visitVarInsn(DSTORE, valueSlot);
+                valueLocals.put(node, valueSlot);
+            }
+        }
+
+        /** Pushes the value of a node, the local variables used to compute it are free for reuse afterwards */
+        private void visitNodeValue(Node node) {
+            final int firstTemporary = currentVar;
+            if (splitNodes.contains(node)) {
+                visitPartMethodCall(node);
+            } else {
+                visitComputeNode(node);
+            }
+            currentVar = firstTemporary;
+        }
+
+        /** Visits an expression that is only evaluated on some paths, the values it computes are not kept after it */
+        private void visitConditional(Node node) {
+            final HashMap<Node, Integer> outerValueLocals = new HashMap<>(valueLocals);
+            visitCompute(node);
+            valueLocals = outerValueLocals;
+        }
+
+        private void visitComputeNode(Node gnode) {
+            comprisedOps++;
+            if (gnode instanceof Node.Const node) {
+                m.visitLdcInsn(node.value());
+            } else if (gnode instanceof Node.AddConst node) {
+                visitCompute(node.input());
+                m.visitLdcInsn(node.offset());
+                m.visitInsn(DADD);
+            } else if (gnode instanceof Node.MulConst node) {
+                visitCompute(node.input());
+                m.visitLdcInsn(node.factor());
+                m.visitInsn(DMUL);
+            } else if (gnode instanceof Node.Add node) {
+                visitCompute(node.a());
+                visitCompute(node.b());
+                m.visitInsn(DADD);
+            } else if (gnode instanceof Node.Mul node) {
+                visitCompute(node.a());
+                final int a1 = currentVar;
+                currentVar += 2;
+                m.visitInsn(DUP2);
+                m.visitVarInsn(DSTORE, a1);
+
+                // if (a1 == 0) { 0 } else { a1 * a2 }
+                m.visitInsn(DCONST_0);
+                m.visitInsn(DCMPL);
+                final Label ifNotZero = new Label();
+                final Label endFn = new Label();
+                m.visitJumpInsn(IFNE, ifNotZero);
+                // equal 0
+                m.visitInsn(DCONST_0);
+                m.visitVarInsn(DSTORE, a1); // overload a1 with the output value
+                m.visitJumpInsn(GOTO, endFn);
+                // not equal 0
+                m.visitLabel(ifNotZero);
+                visitConditional(node.b());
+
+                m.visitVarInsn(DLOAD, a1);
+                m.visitInsn(DUP2_X2);
+                m.visitInsn(POP2); // (a2, a1) -> (a1, a2)
+                m.visitInsn(DMUL); // a1 * a2
+                m.visitVarInsn(DSTORE, a1); // overload a1 with the output value
+                m.visitLabel(endFn);
+                m.visitVarInsn(DLOAD, a1);
+            } else if (gnode instanceof Node.Min node) {
+                visitMinMax(node.a(), node.b(), node.bMin(), true);
+            } else if (gnode instanceof Node.Max node) {
+                visitMinMax(node.a(), node.b(), node.bMax(), false);
+            } else if (gnode instanceof Node.BlendDensity node) {
+                visitCompute(node.input());
+                m.visitVarInsn(ALOAD, contextVar);
                 m.visitMethodInsn(
                         INVOKESTATIC,
                         tUtils.getInternalName(),
                         "blendDensity",
                         tBlendDensityMethod.getDescriptor(),
                         false);
-            } else if (gdf instanceof DensityFunctions.Clamp df) {
-                visitCompute(df.input());
-                m.visitLdcInsn(df.minValue());
-                m.visitLdcInsn(df.maxValue());
+            } else if (gnode instanceof Node.Clamp node) {
+                visitCompute(node.input());
+                m.visitLdcInsn(node.min());
+                m.visitLdcInsn(node.max());
                 m.visitMethodInsn(INVOKESTATIC, tUtils.getInternalName(), "clamp", "(DDD)D", false);
-            } else if (gdf instanceof DensityFunctions.HolderHolder df) {
-                visitCompute(df.function().value());
-            } else if (gdf instanceof DensityFunctions.Mapped df) {
-                visitCompute(df.input());
-                switch (df.type()) {
+            } else if (gnode instanceof Node.Mapped node) {
+                visitCompute(node.input());
+                switch (node.type()) {
                     case ABS -> {
                         m.visitMethodInsn(INVOKESTATIC, Type.getInternalName(Math.class), "abs", "(D)D", false);
                     }
@@ -524,7 +2606,7 @@ public final class DensityFunctionCompiler {
                         m.visitJumpInsn(IFGT, gtZero);
                         // If <= 0
                         m.visitLdcInsn(
-                                switch (df.type()) {
+                                switch (node.type()) {
                                     case HALF_NEGATIVE -> 0.5D;
                                     case QUARTER_NEGATIVE -> 0.25D;
                                     default -> throw new IllegalStateException();
@@ -533,180 +2615,363 @@ public final class DensityFunctionCompiler {
                         // If > 0, no-op
                         m.visitLabel(gtZero);
                     }
-                    case SQUEEZE -> {
-                        m.visitLdcInsn(-1.0);
-                        m.visitLdcInsn(1.0);
-                        m.visitMethodInsn(INVOKESTATIC, tUtils.getInternalName(), "clamp", "(DDD)D", false);
-                        // e
-                        m.visitLdcInsn(2.0D);
-                        m.visitInsn(DDIV); // e / 2.0
-                        m.visitInsn(DUP2); // (e/2, e/2)
-                        m.visitInsn(DUP2);
-                        m.visitInsn(DUP2);
-                        m.visitInsn(DMUL);
-                        m.visitInsn(DMUL); // (e/2, e*e*e/8)
-                        m.visitLdcInsn(3.0);
-                        m.visitInsn(DDIV); // (e/2, e*e*e/24)
-                        m.visitInsn(DSUB); // e/2 - e*e*e/24
-                    }
+                    case SQUEEZE -> throw new IllegalStateException("SQUEEZE is built as Squeeze(Clamp(input))");
                 }
-            } else if (gdf instanceof DensityFunctions.RangeChoice df) {
-                visitCompute(df.input());
+            } else if (gnode instanceof Node.Squeeze node) {
+                visitCompute(node.input());
+                final int vE = currentVar;
+                currentVar += 2;
+                m.visitInsn(DUP2);
+                m.visitVarInsn(DSTORE, vE);
+                m.visitLdcInsn(2.0D);
+                m.visitInsn(DDIV); // e / 2.0
+                m.visitVarInsn(DLOAD, vE);
+                m.visitVarInsn(DLOAD, vE);
+                m.visitInsn(DMUL);
+                m.visitVarInsn(DLOAD, vE);
+                m.visitInsn(DMUL); // e * e * e
+                m.visitLdcInsn(24.0D);
+                m.visitInsn(DDIV);
+                m.visitInsn(DSUB); // e / 2.0 - e * e * e / 24.0
+            } else if (gnode instanceof Node.RangeChoice node) {
+                visitCompute(node.input());
                 m.visitInsn(DUP2);
 
                 final Label outOfRange = new Label(), endIf = new Label();
-                m.visitLdcInsn(df.minInclusive());
-                m.visitInsn(DCMPG);
-                m.visitJumpInsn(IFLT, outOfRange); // if d<this.minInclusive
-                m.visitInsn(DUP2); // keep a consistent stack size of the oor branch
-                m.visitLdcInsn(df.maxExclusive());
+                m.visitLdcInsn(node.minInclusive());
                 m.visitInsn(DCMPL);
-                m.visitJumpInsn(IFGE, outOfRange);
+                m.visitJumpInsn(IFLT, outOfRange); // if !(d >= this.minInclusive), NaN is out of range
+                m.visitInsn(DUP2); // keep a consistent stack size of the oor branch
+                m.visitLdcInsn(node.maxExclusive());
+                m.visitInsn(DCMPG);
+                m.visitJumpInsn(IFGE, outOfRange); // if !(d < this.maxExclusive)
                 m.visitInsn(POP2);
                 // in range
-                visitCompute(df.whenInRange());
+                visitConditional(node.whenInRange());
                 m.visitJumpInsn(GOTO, endIf);
 
                 m.visitLabel(outOfRange);
                 m.visitInsn(POP2); // remove the duplicated input value
-                visitCompute(df.whenOutOfRange());
+                visitConditional(node.whenOutOfRange());
 
                 m.visitLabel(endIf);
-            } else if (gdf instanceof DensityFunctions.Noise df) {
+            } else if (gnode instanceof Node.Noise node) {
                 final int vX = currentVar;
                 final int vY = currentVar + 2;
                 final int vZ = currentVar + 4;
                 currentVar += 6;
 
-                m.visitVarInsn(ALOAD, 1); // context
-                m.visitMethodInsn(
-                        INVOKESTATIC,
-                        tUtils.getInternalName(),
-                        "getFctxXAsDouble",
-                        tGetFctxCoordAsDoubleMethod.getDescriptor(),
-                        false);
-                m.visitLdcInsn(df.xzScale());
+                visitCoordinate(AXIS_X);
+                m.visitInsn(I2D);
+                m.visitLdcInsn(node.xzScale());
                 m.visitInsn(DMUL);
                 m.visitVarInsn(DSTORE, vX);
 
-                m.visitVarInsn(ALOAD, 1); // context
-                m.visitMethodInsn(
-                        INVOKESTATIC,
-                        tUtils.getInternalName(),
-                        "getFctxYAsDouble",
-                        tGetFctxCoordAsDoubleMethod.getDescriptor(),
-                        false);
-                m.visitLdcInsn(df.yScale());
+                visitCoordinate(AXIS_Y);
+                m.visitInsn(I2D);
+                m.visitLdcInsn(node.yScale());
                 m.visitInsn(DMUL);
                 m.visitVarInsn(DSTORE, vY);
 
-                m.visitVarInsn(ALOAD, 1); // context
-                m.visitMethodInsn(
-                        INVOKESTATIC,
-                        tUtils.getInternalName(),
-                        "getFctxZAsDouble",
-                        tGetFctxCoordAsDoubleMethod.getDescriptor(),
-                        false);
-                m.visitLdcInsn(df.xzScale());
+                visitCoordinate(AXIS_Z);
+                m.visitInsn(I2D);
+                m.visitLdcInsn(node.xzScale());
                 m.visitInsn(DMUL);
                 m.visitVarInsn(DSTORE, vZ);
 
-                final String storedField = addStoredNoise(df.noise());
-                m.visitVarInsn(ALOAD, 0);
-                m.visitFieldInsn(
-                        GETFIELD, kls.name, storedField, Type.getDescriptor(DensityFunction.NoiseHolder.class));
-                m.visitVarInsn(DLOAD, vX);
-                m.visitVarInsn(DLOAD, vY);
-                m.visitVarInsn(DLOAD, vZ);
-                m.visitMethodInsn(
-                        INVOKESTATIC,
-                        tUtils.getInternalName(),
-                        "getNoiseValue",
-                        tGetNoiseValueMethod.getDescriptor(),
-                        false);
-            } else if (gdf instanceof DensityFunctions.ShiftedNoise df) {
+                visitNoiseValue(node.noise(), vX, vY, vZ);
+            } else if (gnode instanceof Node.ShiftedNoise node) {
                 final int vX = currentVar;
                 final int vY = currentVar + 2;
                 final int vZ = currentVar + 4;
                 currentVar += 6;
 
-                visitCompute(df.shiftX());
-                m.visitVarInsn(ALOAD, 1); // context
-                m.visitMethodInsn(
-                        INVOKESTATIC,
-                        tUtils.getInternalName(),
-                        "getFctxXAsDouble",
-                        tGetFctxCoordAsDoubleMethod.getDescriptor(),
-                        false);
-                m.visitLdcInsn(df.xzScale());
+                visitCompute(node.shiftX());
+                visitCoordinate(AXIS_X);
+                m.visitInsn(I2D);
+                m.visitLdcInsn(node.xzScale());
                 m.visitInsn(DMUL);
                 m.visitInsn(DADD);
                 m.visitVarInsn(DSTORE, vX);
 
-                visitCompute(df.shiftY());
-                m.visitVarInsn(ALOAD, 1); // context
-                m.visitMethodInsn(
-                        INVOKESTATIC,
-                        tUtils.getInternalName(),
-                        "getFctxYAsDouble",
-                        tGetFctxCoordAsDoubleMethod.getDescriptor(),
-                        false);
-                m.visitLdcInsn(df.yScale());
+                visitCompute(node.shiftY());
+                visitCoordinate(AXIS_Y);
+                m.visitInsn(I2D);
+                m.visitLdcInsn(node.yScale());
                 m.visitInsn(DMUL);
                 m.visitInsn(DADD);
                 m.visitVarInsn(DSTORE, vY);
 
-                visitCompute(df.shiftZ());
-                m.visitVarInsn(ALOAD, 1); // context
-                m.visitMethodInsn(
-                        INVOKESTATIC,
-                        tUtils.getInternalName(),
-                        "getFctxZAsDouble",
-                        tGetFctxCoordAsDoubleMethod.getDescriptor(),
-                        false);
-                m.visitLdcInsn(df.xzScale());
+                visitCompute(node.shiftZ());
+                visitCoordinate(AXIS_Z);
+                m.visitInsn(I2D);
+                m.visitLdcInsn(node.xzScale());
                 m.visitInsn(DMUL);
                 m.visitInsn(DADD);
                 m.visitVarInsn(DSTORE, vZ);
 
-                final String storedField = addStoredNoise(df.noise());
+                visitNoiseValue(node.noise(), vX, vY, vZ);
+            } else if (gnode instanceof Node.WeirdScaledSampler node) {
+                visitWeirdScaledSampler(node);
+            } else if (gnode instanceof Node.Spline node) {
+                visitSpline(node.spline());
+                m.visitInsn(F2D);
+            } else if (gnode instanceof Node.YClampedGradient node) {
+                visitCoordinate(AXIS_Y);
+                m.visitInsn(I2D);
+                m.visitLdcInsn((double) node.fromY());
+                m.visitLdcInsn((double) node.toY());
+                m.visitLdcInsn(node.fromValue());
+                m.visitLdcInsn(node.toValue());
+                m.visitMethodInsn(INVOKESTATIC, tUtils.getInternalName(), "clampedMap", "(DDDDD)D", false);
+            } else if (gnode instanceof Node.Marker node) {
+                visitMarker(node, arrayMode && node.arrayFilled());
+            } else if (gnode instanceof Node.Shared node) {
+                // Called through the instance shared with the other outputs, which holds the last computed value
+                final String storedField = addStoredDensityFunction(compile(node.value(), cache));
+                m.visitVarInsn(ALOAD, 0);
+                m.visitFieldInsn(GETFIELD, kls.name, storedField, Type.getDescriptor(DensityFunction.class));
+                m.visitVarInsn(ALOAD, contextVar);
+                m.visitMethodInsn(
+                        INVOKESTATIC, tUtils.getInternalName(), "compute", tComputeMethod.getDescriptor(), false);
+            } else if (gnode instanceof Node.EndIslands node) {
+                final String storedField = addStoredEndIslands(node.function());
+                final Label replaced = new Label(), end = new Label();
+                m.visitVarInsn(ALOAD, 0);
+                m.visitFieldInsn(GETFIELD, kls.name, storedField, tEndIslands.getDescriptor());
+                m.visitInsn(DUP);
+                m.visitJumpInsn(IFNULL, replaced);
+                visitCoordinate(AXIS_X);
+                visitCoordinate(AXIS_Z);
+                m.visitMethodInsn(INVOKEVIRTUAL, tEndIslands.getInternalName(), "compute", "(II)D", false);
+                m.visitJumpInsn(GOTO, end);
+
+                // mapAll replaced the function, call it
+                m.visitLabel(replaced);
+                m.visitInsn(POP);
                 m.visitVarInsn(ALOAD, 0);
                 m.visitFieldInsn(
-                        GETFIELD, kls.name, storedField, Type.getDescriptor(DensityFunction.NoiseHolder.class));
-                m.visitVarInsn(DLOAD, vX);
-                m.visitVarInsn(DLOAD, vY);
-                m.visitVarInsn(DLOAD, vZ);
+                        GETFIELD, kls.name, addStoredDensityFunction(node.function()), tDF.getDescriptor());
+                m.visitVarInsn(ALOAD, contextVar);
                 m.visitMethodInsn(
-                        INVOKESTATIC,
-                        tUtils.getInternalName(),
-                        "getNoiseValue",
-                        tGetNoiseValueMethod.getDescriptor(),
-                        false);
-            } else if (gdf instanceof DensityFunctions.YClampedGradient df) {
-                m.visitVarInsn(ALOAD, 1); // context
+                        INVOKESTATIC, tUtils.getInternalName(), "compute", tComputeMethod.getDescriptor(), false);
+                m.visitLabel(end);
+            } else if (gnode instanceof Node.OldBlendedNoise node) {
+                final Label replaced = new Label(), end = new Label();
+                m.visitVarInsn(ALOAD, 0);
+                m.visitFieldInsn(
+                        GETFIELD, kls.name, addStoredBlendedNoise(node.function()), tBlendedNoise.getDescriptor());
+                m.visitJumpInsn(IFNULL, replaced);
+                visitBlendedNoise(node.function());
+                m.visitJumpInsn(GOTO, end);
+
+                // mapAll replaced the function, call it
+                m.visitLabel(replaced);
+                m.visitVarInsn(ALOAD, 0);
+                m.visitFieldInsn(
+                        GETFIELD, kls.name, addStoredDensityFunction(node.function()), tDF.getDescriptor());
+                m.visitVarInsn(ALOAD, contextVar);
                 m.visitMethodInsn(
-                        INVOKESTATIC,
-                        tUtils.getInternalName(),
-                        "getFctxYAsDouble",
-                        tGetFctxCoordAsDoubleMethod.getDescriptor(),
-                        false);
-                m.visitLdcInsn((double) df.fromY());
-                m.visitLdcInsn((double) df.toY());
-                m.visitLdcInsn(df.fromValue());
-                m.visitLdcInsn(df.toValue());
-                m.visitMethodInsn(INVOKESTATIC, tUtils.getInternalName(), "clampedMap", "(DDDDD)D", false);
-            } else {
-                if (gdf instanceof DensityFunctions.Marker || gdf instanceof DensityFunctions.Spline) {
-                    gdf = compile(gdf);
-                }
+                        INVOKESTATIC, tUtils.getInternalName(), "compute", tComputeMethod.getDescriptor(), false);
+                m.visitLabel(end);
+            } else if (gnode instanceof Node.Opaque node) {
                 // Fallback to calling a stored object, these functions are really complex
-                final String storedField = addStoredDensityFunction(gdf);
+                final String storedField = addStoredDensityFunction(node.function());
                 m.visitVarInsn(ALOAD, 0);
                 m.visitFieldInsn(GETFIELD, kls.name, storedField, Type.getDescriptor(DensityFunction.class));
-                m.visitVarInsn(ALOAD, 1);
+                m.visitVarInsn(ALOAD, contextVar);
                 m.visitMethodInsn(
                         INVOKESTATIC, tUtils.getInternalName(), "compute", tComputeMethod.getDescriptor(), false);
+            } else {
+                throw new IllegalStateException("Unknown node " + gnode);
+            }
+        }
+
+        /** WeirdScaledSampler.transform with the rarity mapper as a chain of branches */
+        private void visitWeirdScaledSampler(Node.WeirdScaledSampler node) {
+            final int vRarity = currentVar;
+            currentVar += 2;
+            visitCompute(node.input());
+            final double[] thresholds = node.thresholds();
+            final double[] rarities = node.rarities();
+            final Label end = new Label();
+            for (int i = 0; i < thresholds.length; i++) {
+                final Label next = new Label();
+                m.visitInsn(DUP2);
+                m.visitLdcInsn(thresholds[i]);
+                m.visitInsn(DCMPG);
+                m.visitJumpInsn(IFGE, next); // if !(d < threshold), NaN is above every threshold
+                m.visitInsn(POP2);
+                m.visitLdcInsn(rarities[i]);
+                m.visitJumpInsn(GOTO, end);
+                m.visitLabel(next);
             }
+            m.visitInsn(POP2);
+            m.visitLdcInsn(rarities[thresholds.length]);
+            m.visitLabel(end);
+            m.visitVarInsn(DSTORE, vRarity);
+
+            // e * Math.abs(noise.getValue(x / e, y / e, z / e))
+            final int vX = currentVar;
+            final int vY = currentVar + 2;
+            final int vZ = currentVar + 4;
+            currentVar += 6;
+            final int[] vars = {vX, vY, vZ};
+            for (int axis = 0; axis < 3; axis++) {
+                visitCoordinate(axis);
+                m.visitInsn(I2D);
+                m.visitVarInsn(DLOAD, vRarity);
+                m.visitInsn(DDIV);
+                m.visitVarInsn(DSTORE, vars[axis]);
+            }
+            m.visitVarInsn(DLOAD, vRarity);
+            visitNoiseValue(node.noise(), vX, vY, vZ);
+            m.visitMethodInsn(INVOKESTATIC, Type.getInternalName(Math.class), "abs", "(D)D", false);
+            m.visitInsn(DMUL);
+        }
+
+        /**
+         * BlendedNoise.compute with the octave loops unrolled and the parameters baked in as constants. Like vanilla,
+         * the min limit noise is only sampled when the main noise does not select the max limit noise alone, and the
+         * other way around.
+         */
+        private void visitBlendedNoise(BlendedNoise noise) {
+            final int vD = currentVar;
+            final int vE = currentVar + 2;
+            final int vF = currentVar + 4;
+            final int vG = currentVar + 6;
+            final int vH = currentVar + 8;
+            final int vI = currentVar + 10;
+            final int vQ = currentVar + 12;
+            currentVar += 14;
+            final int[] scaledVars = {vD, vE, vF};
+            final int[] mainVars = {vG, vH, vI};
+            final double[] multipliers = {noise.xzMultiplier, noise.yMultiplier, noise.xzMultiplier};
+            final double[] factors = {noise.xzFactor, noise.yFactor, noise.xzFactor};
+            for (int axis = 0; axis < 3; axis++) {
+                visitCoordinate(axis);
+                m.visitInsn(I2D);
+                m.visitLdcInsn(multipliers[axis]);
+                m.visitInsn(DMUL);
+                m.visitInsn(DUP2);
+                m.visitVarInsn(DSTORE, scaledVars[axis]);
+                m.visitLdcInsn(factors[axis]);
+                m.visitInsn(DDIV);
+                m.visitVarInsn(DSTORE, mainVars[axis]);
+            }
+            final double j = noise.yMultiplier * noise.smearScaleMultiplier;
+            final double k = j / noise.yFactor;
+
+            // n, then q = (n / 10 + 1) / 2
+            m.visitInsn(DCONST_0);
+            visitBlendedOctaves(noise, 2, BLENDED_MAIN_OCTAVES, mainVars, k);
+            m.visitLdcInsn(10.0);
+            m.visitInsn(DDIV);
+            m.visitInsn(DCONST_1);
+            m.visitInsn(DADD);
+            m.visitLdcInsn(2.0);
+            m.visitInsn(DDIV);
+            m.visitVarInsn(DSTORE, vQ);
+
+            // l, skipped when q >= 1, a comparison with NaN is false so it must not jump
+            final Label skipMin = new Label();
+            m.visitInsn(DCONST_0);
+            m.visitVarInsn(DLOAD, vQ);
+            m.visitInsn(DCONST_1);
+            m.visitInsn(DCMPL);
+            m.visitJumpInsn(IFGE, skipMin);
+            visitBlendedOctaves(noise, 0, BLENDED_LIMIT_OCTAVES, scaledVars, j);
+            m.visitLabel(skipMin);
+            m.visitLdcInsn(512.0);
+            m.visitInsn(DDIV);
+
+            // m, skipped when q <= 0
+            final Label skipMax = new Label();
+            m.visitInsn(DCONST_0);
+            m.visitVarInsn(DLOAD, vQ);
+            m.visitInsn(DCONST_0);
+            m.visitInsn(DCMPG);
+            m.visitJumpInsn(IFLE, skipMax);
+            visitBlendedOctaves(noise, 1, BLENDED_LIMIT_OCTAVES, scaledVars, j);
+            m.visitLabel(skipMax);
+            m.visitLdcInsn(512.0);
+            m.visitInsn(DDIV);
+
+            m.visitVarInsn(DLOAD, vQ);
+            m.visitMethodInsn(INVOKESTATIC, tUtils.getInternalName(), "clampedLerp", "(DDD)D", false);
+            m.visitLdcInsn(128.0);
+            m.visitInsn(DDIV);
+        }
+
+        /**
+         * Adds octave.noise(wrap(x * o), wrap(y * o), wrap(z * o), yScale * o, y * o) / o to the value on the stack
+         * for every octave of one of the PerlinNoises of a BlendedNoise, o halving from 1
+         */
+        private void visitBlendedOctaves(BlendedNoise noise, int perlinIndex, int octaves, int[] vars, double yScale) {
+            final PerlinNoise perlin =
+                    switch (perlinIndex) {
+                        case 0 -> noise.minLimitNoise;
+                        case 1 -> noise.maxLimitNoise;
+                        default -> noise.mainNoise;
+                    };
+            double o = 1.0;
+            for (int i = 0; i < octaves; i++) {
+                if (perlin.getOctaveNoise(i) != null) {
+                    m.visitVarInsn(ALOAD, 0);
+                    m.visitFieldInsn(
+                            GETFIELD,
+                            kls.name,
+                            addStoredBlendedOctave(noise, perlinIndex, i),
+                            tImprovedNoise.getDescriptor());
+                    for (int var : vars) {
+                        visitWrappedOctaveCoordinate(var, o);
+                    }
+                    m.visitLdcInsn(yScale * o);
+                    m.visitVarInsn(DLOAD, vars[AXIS_Y]);
+                    m.visitLdcInsn(o);
+                    m.visitInsn(DMUL);
+                    m.visitMethodInsn(
+                            INVOKESTATIC,
+                            tUtils.getInternalName(),
+                            "sampleOctave",
+                            tSampleOctaveMethod.getDescriptor(),
+                            false);
+                    m.visitLdcInsn(o);
+                    m.visitInsn(DDIV);
+                    m.visitInsn(DADD);
+                }
+                o /= 2.0;
+            }
+        }
+
+        /**
+         * Ap2 MIN and MAX: b is only computed when a is not beyond the bound of b
+         * @param bound The minimum of b for MIN, the maximum of b for MAX
+         */
+        private void visitMinMax(Node a, Node b, double bound, boolean isMin) {
+            visitCompute(a);
+            final int a1 = currentVar;
+            currentVar += 2;
+            m.visitInsn(DUP2);
+            m.visitVarInsn(DSTORE, a1);
+
+            // if (a1 <> boundary) { a1 } else { Math.minmax(a1, a2) }
+            m.visitLdcInsn(bound);
+            // a comparison with NaN is false, so it must not jump
+            m.visitInsn(isMin ? DCMPG : DCMPL);
+            final Label endFn = new Label();
+            m.visitJumpInsn(isMin ? IFLT : IFGT, endFn);
+            // beyond boundary - short circuit (goto endFn)
+            // not beyond boundary; compute a2 and the min/max
+            visitConditional(b);
+
+            m.visitVarInsn(DLOAD, a1);
+            m.visitInsn(DUP2_X2);
+            m.visitInsn(POP2); // (a2, a1) -> (a1, a2)
+            m.visitMethodInsn(INVOKESTATIC, Type.getInternalName(Math.class), isMin ? "min" : "max", "(DD)D", false);
+            m.visitVarInsn(DSTORE, a1); // overload a1 with the output value
+            m.visitLabel(endFn);
+            m.visitVarInsn(DLOAD, a1);
         }
     }
 }
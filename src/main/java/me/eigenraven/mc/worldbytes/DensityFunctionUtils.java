@@ -1,17 +1,136 @@
 package me.eigenraven.mc.worldbytes;
 
+import java.util.Arrays;
 import net.minecraft.util.Mth;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.levelgen.DensityFunction;
+import net.minecraft.world.level.levelgen.DensityFunctions;
+import net.minecraft.world.level.levelgen.NoiseChunk;
+import net.minecraft.world.level.levelgen.synth.BlendedNoise;
+import net.minecraft.world.level.levelgen.synth.ImprovedNoise;
+import net.minecraft.world.level.levelgen.synth.NormalNoise;
+import net.minecraft.world.level.levelgen.synth.PerlinNoise;
 
 /** Fixed-name functions called from the compiled DF code */
 @SuppressWarnings("unused")
 public final class DensityFunctionUtils {
     private DensityFunctionUtils() {}
 
+    /** The mapped marker is not known to the compiler, call it through the stored DensityFunction */
+    public static final int MARKER_CALL = 0;
+    /** The marker was not replaced by a cache, evaluate the wrapped function in the compiled code */
+    public static final int MARKER_INLINE = 1;
+    /** The marker was replaced by the matching NoiseChunk cache, use the lowered cache in the compiled code */
+    public static final int MARKER_LOWERED = 2;
+    /** NormalNoise.INPUT_FACTOR */
+    public static final double NORMAL_NOISE_INPUT_FACTOR = 1.0181268882175227;
+
+    public static NoiseChunk.NoiseInterpolator asInterpolator(DensityFunction fn) {
+        return fn instanceof NoiseChunk.NoiseInterpolator interpolator ? interpolator : null;
+    }
+
+    public static NoiseChunk.Cache2D asCache2D(DensityFunction fn) {
+        return fn instanceof NoiseChunk.Cache2D cache ? cache : null;
+    }
+
+    public static NoiseChunk.CacheOnce asCacheOnce(DensityFunction fn) {
+        return fn instanceof NoiseChunk.CacheOnce cache ? cache : null;
+    }
+
     public static double blendDensity(double d, DensityFunction.FunctionContext fctx) {
         return fctx.getBlender().blendDensity(fctx, d);
     }
 
+    public static long cache2DLastPos(NoiseChunk.Cache2D cache) {
+        return cache.lastPos2D;
+    }
+
+    public static double cache2DLastValue(NoiseChunk.Cache2D cache) {
+        return cache.lastValue;
+    }
+
+    public static void cache2DStore(NoiseChunk.Cache2D cache, long pos, double value) {
+        cache.lastPos2D = pos;
+        cache.lastValue = value;
+    }
+
+    /** @return Whether NoiseChunk.CacheOnce.fillArray would copy the array it filled before */
+    public static boolean cacheOnceArrayHit(NoiseChunk.CacheOnce cache, NoiseChunk owner) {
+        return cache.lastArray != null && cache.lastArrayCounter == owner.arrayInterpolationCounter;
+    }
+
+    public static double cacheOnceArrayValue(NoiseChunk.CacheOnce cache, int index) {
+        return cache.lastArray[index];
+    }
+
+    /** @return Whether NoiseChunk.CacheOnce.compute would return a cached value */
+    public static boolean cacheOnceHit(
+            NoiseChunk.CacheOnce cache, NoiseChunk owner, DensityFunction.FunctionContext fctx) {
+        if (fctx != owner) {
+            return false;
+        }
+        return cacheOnceArrayHit(cache, owner) || cache.lastCounter == owner.interpolationCounter;
+    }
+
+    public static void cacheOnceStore(
+            NoiseChunk.CacheOnce cache, NoiseChunk owner, DensityFunction.FunctionContext fctx, double value) {
+        if (fctx == owner) {
+            cache.lastCounter = owner.interpolationCounter;
+            cache.lastValue = value;
+        }
+    }
+
+    /**
+     * Stores one element of the array NoiseChunk.CacheOnce.fillArray remembers, the array becomes valid once its last
+     * element is stored
+     */
+    public static void cacheOnceStoreArray(
+            NoiseChunk.CacheOnce cache, NoiseChunk owner, int index, int length, double value) {
+        if (index == 0 && (cache.lastArray == null || cache.lastArray.length != length)) {
+            cache.lastArray = new double[length];
+        }
+        cache.lastArray[index] = value;
+        if (index == length - 1) {
+            cache.lastArrayCounter = owner.arrayInterpolationCounter;
+        }
+    }
+
+    public static double cacheOnceValue(NoiseChunk.CacheOnce cache, NoiseChunk owner) {
+        return cacheOnceArrayHit(cache, owner) ? cache.lastArray[owner.arrayIndex] : cache.lastValue;
+    }
+
+    public static NoiseChunk cacheOwner(DensityFunction fn) {
+        return fn instanceof NoiseChunkCacheAccess cache ? cache.worldbytes$getOwner() : null;
+    }
+
+    /**
+     * Mirrors the position checks of NoiseChunk.CacheAllInCell.compute
+     * @return The index into the cell cache values, or -1 if the value has to be computed directly
+     */
+    public static int cellCacheIndex(NoiseChunk owner, DensityFunction.FunctionContext fctx) {
+        if (fctx != owner) {
+            return -1;
+        }
+        if (!owner.interpolating) {
+            throw new IllegalStateException("Trying to sample interpolator outside the interpolation loop");
+        }
+        final int x = owner.inCellX;
+        final int y = owner.inCellY;
+        final int z = owner.inCellZ;
+        if (x >= 0 && y >= 0 && z >= 0 && x < owner.cellWidth && y < owner.cellHeight && z < owner.cellWidth) {
+            return ((owner.cellHeight - 1 - y) * owner.cellWidth + x) * owner.cellWidth + z;
+        }
+        return -1;
+    }
+
+    public static double[] cellCacheValues(DensityFunction fn) {
+        return fn instanceof NoiseChunk.CacheAllInCell cache ? cache.values : null;
+    }
+
+    public static long chunkPosKey(int blockX, int blockZ) {
+        return ChunkPos.asLong(blockX, blockZ);
+    }
+
     public static double clamp(double val, double min, double max) {
         return Mth.clamp(val, min, max);
     }
@@ -20,23 +139,169 @@ public final class DensityFunctionUtils {
         return Mth.clampedMap(a, b, c, d, e);
     }
 
+    public static double clampedLerp(double a, double b, double t) {
+        return Mth.clampedLerp(a, b, t);
+    }
+
     public static double compute(DensityFunction df, DensityFunction.FunctionContext fctx) {
         return df.compute(fctx);
     }
 
-    public static double getFctxXAsDouble(DensityFunction.FunctionContext fctx) {
+    public static double computeInterpolated(
+            NoiseChunk.NoiseInterpolator interpolator, DensityFunction.FunctionContext fctx) {
+        return interpolator.compute(fctx);
+    }
+
+    public static int flatCacheFirstQuartX(DensityFunction fn) {
+        final NoiseChunk owner = cacheOwner(fn);
+        return owner == null ? 0 : owner.firstNoiseX;
+    }
+
+    public static int flatCacheFirstQuartZ(DensityFunction fn) {
+        final NoiseChunk owner = cacheOwner(fn);
+        return owner == null ? 0 : owner.firstNoiseZ;
+    }
+
+    public static double[][] flatCacheValues(DensityFunction fn) {
+        return fn instanceof NoiseChunk.FlatCache cache ? cache.values : null;
+    }
+
+    public static DensityFunction.FunctionContext forIndex(DensityFunction.ContextProvider provider, int index) {
+        return provider.forIndex(index);
+    }
+
+    /**
+     * Nearly every context is the NoiseChunk or a SinglePointContext, checking for them lets the JIT inline the
+     * coordinate getters instead of dispatching through the interface
+     */
+    public static int getFctxX(DensityFunction.FunctionContext fctx) {
+        if (fctx instanceof NoiseChunk chunk) {
+            return chunk.blockX();
+        } else if (fctx instanceof DensityFunction.SinglePointContext point) {
+            return point.blockX();
+        }
         return fctx.blockX();
     }
 
-    public static double getFctxYAsDouble(DensityFunction.FunctionContext fctx) {
+    public static int getFctxY(DensityFunction.FunctionContext fctx) {
+        if (fctx instanceof NoiseChunk chunk) {
+            return chunk.blockY();
+        } else if (fctx instanceof DensityFunction.SinglePointContext point) {
+            return point.blockY();
+        }
         return fctx.blockY();
     }
 
-    public static double getFctxZAsDouble(DensityFunction.FunctionContext fctx) {
+    public static int getFctxZ(DensityFunction.FunctionContext fctx) {
+        if (fctx instanceof NoiseChunk chunk) {
+            return chunk.blockZ();
+        } else if (fctx instanceof DensityFunction.SinglePointContext point) {
+            return point.blockZ();
+        }
         return fctx.blockZ();
     }
 
+    public static FlatNoise getFlatNoise(DensityFunction.NoiseHolder noise) {
+        final NormalNoise normalNoise = noise.noise();
+        return normalNoise == null ? null : FlatNoise.of(normalNoise);
+    }
+
+    /** @return The islands of the function, or null when mapAll replaced the EndIslandDensityFunction */
+    public static EndIslands getEndIslands(DensityFunction fn) {
+        return fn instanceof DensityFunctions.EndIslandDensityFunction islands ? EndIslands.of(islands) : null;
+    }
+
+    /**
+     * @return The noise when it is a BlendedNoise with the parameters the code was compiled for, or null when mapAll
+     *     replaced it
+     */
+    public static BlendedNoise asBlendedNoise(
+            DensityFunction fn,
+            double xzMultiplier,
+            double yMultiplier,
+            double xzFactor,
+            double yFactor,
+            double smearScaleMultiplier) {
+        return fn instanceof BlendedNoise noise
+                        && noise.xzMultiplier == xzMultiplier
+                        && noise.yMultiplier == yMultiplier
+                        && noise.xzFactor == xzFactor
+                        && noise.yFactor == yFactor
+                        && noise.smearScaleMultiplier == smearScaleMultiplier
+                ? noise
+                : null;
+    }
+
+    /**
+     * @param perlinIndex 0 for the min limit noise, 1 for the max limit noise, 2 for the main noise
+     * @param octaveIndex The index passed to PerlinNoise.getOctaveNoise
+     */
+    public static ImprovedNoise getBlendedNoiseOctave(BlendedNoise noise, int perlinIndex, int octaveIndex) {
+        if (noise == null) {
+            return null;
+        }
+        final PerlinNoise perlin =
+                switch (perlinIndex) {
+                    case 0 -> noise.minLimitNoise;
+                    case 1 -> noise.maxLimitNoise;
+                    default -> noise.mainNoise;
+                };
+        return perlin.getOctaveNoise(octaveIndex);
+    }
+
+    public static double sampleOctave(ImprovedNoise octave, double x, double y, double z, double yScale, double yMax) {
+        return octave.noise(x, y, z, yScale, yMax);
+    }
+
     public static double getNoiseValue(DensityFunction.NoiseHolder noise, double x, double y, double z) {
         return noise.getValue(x, y, z);
     }
+
+    /**
+     * NoiseHolder.getValue for every index of the coordinate arrays, with the flattened octaves the compiled function
+     * stores for the noise, or null for a NoiseHolder without a noise. The octaves of the first PerlinNoise are sampled
+     * one at a time across the whole batch, so the setup of each octave is shared and its permutation table stays in
+     * the cache. The second PerlinNoise is summed for each index on its own, so no other array is needed. Every sum is
+     * accumulated in the same order as the vanilla octave loop.
+     */
+    public static void fillNoiseValues(FlatNoise flatNoise, double[] xs, double[] ys, double[] zs, double[] values) {
+        Arrays.fill(values, 0.0);
+        if (flatNoise == null) {
+            return;
+        }
+        for (int octave = 0; octave < flatNoise.firstOctaves; octave++) {
+            flatNoise.addOctaveValues(octave, xs, ys, zs, 1.0, values);
+        }
+        for (int i = 0; i < values.length; i++) {
+            double second = 0.0;
+            for (int octave = flatNoise.firstOctaves; octave < flatNoise.octaveCount(); octave++) {
+                second += flatNoise.octaveValue(octave, xs[i], ys[i], zs[i], NORMAL_NOISE_INPUT_FACTOR);
+            }
+            values[i] = (values[i] + second) * flatNoise.valueFactor;
+        }
+    }
+
+    /**
+     * Determines how the compiled code evaluates a marker after the stored function went through mapAll
+     * @param typeOrdinal The ordinal of the marker type, enum constant names are not mapping-independent
+     */
+    public static int markerMode(DensityFunction fn, int typeOrdinal) {
+        final DensityFunctions.Marker.Type type = DensityFunctions.Marker.Type.values()[typeOrdinal];
+        if (fn instanceof DensityFunctions.Marker marker && marker.type() == type) {
+            return MARKER_INLINE;
+        }
+        final boolean lowerable =
+                switch (type) {
+                    case Interpolated -> fn instanceof NoiseChunk.NoiseInterpolator;
+                    case FlatCache -> fn instanceof NoiseChunk.FlatCache && cacheOwner(fn) != null;
+                    case Cache2D -> fn instanceof NoiseChunk.Cache2D;
+                    case CacheOnce -> fn instanceof NoiseChunk.CacheOnce && cacheOwner(fn) != null;
+                    case CacheAllInCell -> fn instanceof NoiseChunk.CacheAllInCell && cacheOwner(fn) != null;
+                };
+        return lowerable ? MARKER_LOWERED : MARKER_CALL;
+    }
+
+    public static double wrap(double coordinate) {
+        return PerlinNoise.wrap(coordinate);
+    }
 }
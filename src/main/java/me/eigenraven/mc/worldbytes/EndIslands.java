@@ -0,0 +1,155 @@
+package me.eigenraven.mc.worldbytes;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.levelgen.DensityFunctions;
+import net.minecraft.world.level.levelgen.synth.SimplexNoise;
+
+/**
+ * DensityFunctions.EndIslandDensityFunction with the island noise sampled ahead into bitsets, a tile of them at a
+ * time, and the neighbourhood scan ordered by distance so that it stops at the first neighbour too far away to raise
+ * the height. The result is the same as the vanilla function's.
+ */
+public final class EndIslands {
+    /** Tiles cover TILE_SIZE x TILE_SIZE neighbour positions */
+    private static final int TILE_SHIFT = 6;
+
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int CACHE_BITS = 10;
+    /** The neighbours of every combination of x % 2 and z % 2, which range over -1, 0 and 1 */
+    private static final Neighbours[] NEIGHBOURS = new Neighbours[9];
+
+    static {
+        for (int k = -1; k <= 1; k++) {
+            for (int l = -1; l <= 1; l++) {
+                NEIGHBOURS[(k + 1) * 3 + l + 1] = Neighbours.of(k, l);
+            }
+        }
+    }
+
+    private final SimplexNoise islandNoise;
+    /**
+     * A direct-mapped cache of island tiles. Tiles are immutable, so threads racing on a slot at worst compute the same
+     * tile twice.
+     */
+    private final Tile[] tiles = new Tile[1 << CACHE_BITS];
+
+    private EndIslands(SimplexNoise islandNoise) {
+        this.islandNoise = islandNoise;
+    }
+
+    /** @return The islands of the function, built once per function and so once per RandomState */
+    public static EndIslands of(DensityFunctions.EndIslandDensityFunction fn) {
+        // the class is final before the mixin applies
+        return (Object) fn instanceof EndIslandsAccess access ? access.worldbytes$getEndIslands() : create(fn);
+    }
+
+    public static EndIslands create(DensityFunctions.EndIslandDensityFunction fn) {
+        return new EndIslands(fn.islandNoise);
+    }
+
+    /** EndIslandDensityFunction.compute */
+    public double compute(int blockX, int blockZ) {
+        return ((double) heightValue(blockX / 8, blockZ / 8) - 8.0) / 128.0;
+    }
+
+    /** EndIslandDensityFunction.getHeightValue */
+    private float heightValue(int x, int z) {
+        final int i = x / 2;
+        final int j = z / 2;
+        float f = 100.0F - Mth.sqrt((float) (x * x + z * z)) * 8.0F;
+        f = Mth.clamp(f, -100.0F, 80.0F);
+        final Neighbours neighbours = NEIGHBOURS[(x % 2 + 1) * 3 + z % 2 + 1];
+        for (int n = 0; n < neighbours.bounds.length; n++) {
+            // the neighbours are ordered by their largest height
+            if (neighbours.bounds[n] <= f) {
+                break;
+            }
+            final long o = i + neighbours.offsetsX[n];
+            final long p = j + neighbours.offsetsZ[n];
+            if (o * o + p * p > 4096L && isIsland(o, p)) {
+                final float g = (Mth.abs((float) o) * 3439.0F + Mth.abs((float) p) * 147.0F) % 13.0F + 9.0F;
+                float r = 100.0F - neighbours.distances[n] * g;
+                r = Mth.clamp(r, -100.0F, 80.0F);
+                f = Math.max(f, r);
+            }
+        }
+        return f;
+    }
+
+    private boolean isIsland(long o, long p) {
+        final long tileX = o >> TILE_SHIFT;
+        final long tileZ = p >> TILE_SHIFT;
+        final long key = (tileX << 32) ^ (tileZ & 0xFFFFFFFFL);
+        final int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - CACHE_BITS));
+        Tile tile = tiles[slot];
+        if (tile == null || tile.key != key) {
+            tile = computeTile(key, tileX, tileZ);
+            tiles[slot] = tile;
+        }
+        final int bit = (int) ((o & (TILE_SIZE - 1)) << TILE_SHIFT | (p & (TILE_SIZE - 1)));
+        return (tile.bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private Tile computeTile(long key, long tileX, long tileZ) {
+        final long[] bits = new long[TILE_SIZE * TILE_SIZE / 64];
+        for (int a = 0; a < TILE_SIZE; a++) {
+            for (int b = 0; b < TILE_SIZE; b++) {
+                final long o = (tileX << TILE_SHIFT) + a;
+                final long p = (tileZ << TILE_SHIFT) + b;
+                if (islandNoise.getValue((double) o, (double) p) < -0.9F) {
+                    final int bit = a << TILE_SHIFT | b;
+                    bits[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+        return new Tile(key, bits);
+    }
+
+    private record Tile(long key, long[] bits) {}
+
+    /**
+     * The 25x25 neighbourhood scanned for islands, by decreasing bound of the height an island at the neighbour can
+     * reach. The height falls with the distance times a factor of at least 9, neighbours that cannot reach above -100
+     * are left out.
+     */
+    private record Neighbours(int[] offsetsX, int[] offsetsZ, float[] distances, float[] bounds) {
+        static Neighbours of(int k, int l) {
+            final List<int[]> offsets = new ArrayList<>();
+            for (int m = -12; m <= 12; m++) {
+                for (int n = -12; n <= 12; n++) {
+                    if (bound(distance(k, l, m, n)) > -100.0F) {
+                        offsets.add(new int[] {m, n});
+                    }
+                }
+            }
+            offsets.sort(Comparator.comparingDouble(offset -> distance(k, l, offset[0], offset[1])));
+            final Neighbours neighbours = new Neighbours(
+                    new int[offsets.size()],
+                    new int[offsets.size()],
+                    new float[offsets.size()],
+                    new float[offsets.size()]);
+            for (int i = 0; i < offsets.size(); i++) {
+                final int[] offset = offsets.get(i);
+                neighbours.offsetsX[i] = offset[0];
+                neighbours.offsetsZ[i] = offset[1];
+                neighbours.distances[i] = distance(k, l, offset[0], offset[1]);
+                neighbours.bounds[i] = bound(neighbours.distances[i]);
+            }
+            return neighbours;
+        }
+
+        private static float distance(int k, int l, int m, int n) {
+            final float h = (float) (k - m * 2);
+            final float q = (float) (l - n * 2);
+            return Mth.sqrt(h * h + q * q);
+        }
+
+        /** The rounding of float arithmetic is monotonic, so no factor of at least 9 gives a larger height */
+        private static float bound(float distance) {
+            return Mth.clamp(100.0F - distance * 9.0F, -100.0F, 80.0F);
+        }
+    }
+}
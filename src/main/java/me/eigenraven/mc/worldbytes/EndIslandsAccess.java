@@ -0,0 +1,6 @@
+package me.eigenraven.mc.worldbytes;
+
+/** Implemented by EndIslandDensityFunction through a mixin, caches the sampled islands of the function */
+public interface EndIslandsAccess {
+    EndIslands worldbytes$getEndIslands();
+}
@@ -0,0 +1,158 @@
+package me.eigenraven.mc.worldbytes;
+
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.levelgen.synth.ImprovedNoise;
+import net.minecraft.world.level.levelgen.synth.NormalNoise;
+import net.minecraft.world.level.levelgen.synth.PerlinNoise;
+import net.minecraft.world.level.levelgen.synth.SimplexNoise;
+
+/**
+ * The octaves of a NormalNoise packed into two primitive arrays, sampled by the compiled code instead of chasing the
+ * ImprovedNoise objects of the two PerlinNoises and their permutation tables across the heap. Only the octaves that
+ * exist are packed, the ones of the first PerlinNoise come first.
+ */
+public final class FlatNoise {
+    /** The doubles stored per octave: the x, y and z origins, the input factor, the amplitude and the value factor */
+    public static final int STRIDE = 6;
+
+    public final double[] octaves;
+    /** The 256 entry permutation table of every octave */
+    public final byte[] permutations;
+    /** The number of octaves from the first PerlinNoise */
+    public final int firstOctaves;
+    /** NormalNoise.valueFactor, the sum of both PerlinNoises is multiplied by it */
+    public final double valueFactor;
+
+    private FlatNoise(NormalNoise noise) {
+        final int firstOctaves = octaveCount(noise.first);
+        final int octaveCount = firstOctaves + octaveCount(noise.second);
+        this.octaves = new double[octaveCount * STRIDE];
+        this.permutations = new byte[octaveCount * 256];
+        this.firstOctaves = firstOctaves;
+        this.valueFactor = noise.valueFactor;
+        int octave = 0;
+        for (PerlinNoise perlin : new PerlinNoise[] {noise.first, noise.second}) {
+            double inputFactor = perlin.lowestFreqInputFactor;
+            double valueFactor = perlin.lowestFreqValueFactor;
+            for (int i = 0; i < perlin.noiseLevels.length; i++) {
+                final ImprovedNoise improvedNoise = perlin.noiseLevels[i];
+                if (improvedNoise != null) {
+                    final int base = octave * STRIDE;
+                    octaves[base] = improvedNoise.xo;
+                    octaves[base + 1] = improvedNoise.yo;
+                    octaves[base + 2] = improvedNoise.zo;
+                    octaves[base + 3] = inputFactor;
+                    octaves[base + 4] = perlin.amplitudes.getDouble(i);
+                    octaves[base + 5] = valueFactor;
+                    System.arraycopy(improvedNoise.p, 0, permutations, octave * 256, 256);
+                    octave++;
+                }
+                inputFactor *= 2.0;
+                valueFactor /= 2.0;
+            }
+        }
+    }
+
+    /** @return The flattened octaves of the noise, built once per NormalNoise and so once per RandomState */
+    public static FlatNoise of(NormalNoise noise) {
+        return noise instanceof FlatNoiseAccess access ? access.worldbytes$getFlatNoise() : create(noise);
+    }
+
+    public static FlatNoise create(NormalNoise noise) {
+        return new FlatNoise(noise);
+    }
+
+    /** @return The index of an octave of the first (0) or second (1) PerlinNoise among the flattened octaves */
+    public static int index(NormalNoise noise, int perlinIndex, int octaveIndex) {
+        final PerlinNoise perlin = perlinIndex == 0 ? noise.first : noise.second;
+        int index = perlinIndex == 0 ? 0 : octaveCount(noise.first);
+        for (int i = 0; i < octaveIndex; i++) {
+            if (perlin.noiseLevels[i] != null) {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    public int octaveCount() {
+        return octaves.length / STRIDE;
+    }
+
+    private static int octaveCount(PerlinNoise perlin) {
+        int count = 0;
+        for (ImprovedNoise improvedNoise : perlin.noiseLevels) {
+            if (improvedNoise != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** ImprovedNoise.noise(x, y, z) of an octave */
+    public double sample(int octave, double x, double y, double z) {
+        final int base = octave * STRIDE;
+        final double d = x + octaves[base];
+        final double e = y + octaves[base + 1];
+        final double f = z + octaves[base + 2];
+        final int i = Mth.floor(d);
+        final int j = Mth.floor(e);
+        final int k = Mth.floor(f);
+        final double g = d - (double) i;
+        final double h = e - (double) j;
+        final double l = f - (double) k;
+        return sampleAndLerp(octave * 256, i, j, k, g, h, l);
+    }
+
+    /**
+     * Adds the contribution of an octave to PerlinNoise.getValue(x * inputScale, y * inputScale, z * inputScale) for
+     * every index of the coordinate arrays
+     */
+    public void addOctaveValues(
+            int octave, double[] xs, double[] ys, double[] zs, double inputScale, double[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] += octaveValue(octave, xs[i], ys[i], zs[i], inputScale);
+        }
+    }
+
+    /** @return The contribution of an octave to PerlinNoise.getValue(x * inputScale, y * inputScale, z * inputScale) */
+    public double octaveValue(int octave, double x, double y, double z, double inputScale) {
+        final int base = octave * STRIDE;
+        final double inputFactor = octaves[base + 3];
+        final double sample = sample(
+                octave,
+                PerlinNoise.wrap(x * inputScale * inputFactor),
+                PerlinNoise.wrap(y * inputScale * inputFactor),
+                PerlinNoise.wrap(z * inputScale * inputFactor));
+        return octaves[base + 4] * sample * octaves[base + 5];
+    }
+
+    private int p(int table, int i) {
+        return permutations[table + (i & 0xFF)] & 0xFF;
+    }
+
+    private static double gradDot(int hash, double x, double y, double z) {
+        return SimplexNoise.dot(SimplexNoise.GRADIENT[hash & 15], x, y, z);
+    }
+
+    /** ImprovedNoise.sampleAndLerp without the y scale, where the fractional y is both the sample and fade input */
+    private double sampleAndLerp(int table, int sx, int sy, int sz, double lx, double ly, double lz) {
+        final int i = p(table, sx);
+        final int j = p(table, sx + 1);
+        final int k = p(table, i + sy);
+        final int l = p(table, i + sy + 1);
+        final int m = p(table, j + sy);
+        final int n = p(table, j + sy + 1);
+        final double d = gradDot(p(table, k + sz), lx, ly, lz);
+        final double e = gradDot(p(table, m + sz), lx - 1.0, ly, lz);
+        final double f = gradDot(p(table, l + sz), lx, ly - 1.0, lz);
+        final double g = gradDot(p(table, n + sz), lx - 1.0, ly - 1.0, lz);
+        final double h = gradDot(p(table, k + sz + 1), lx, ly, lz - 1.0);
+        final double o = gradDot(p(table, m + sz + 1), lx - 1.0, ly, lz - 1.0);
+        final double p = gradDot(p(table, l + sz + 1), lx, ly - 1.0, lz - 1.0);
+        final double q = gradDot(p(table, n + sz + 1), lx - 1.0, ly - 1.0, lz - 1.0);
+        final double r = Mth.smoothstep(lx);
+        final double s = Mth.smoothstep(ly);
+        final double t = Mth.smoothstep(lz);
+        return Mth.lerp3(r, s, t, d, e, f, g, h, o, p, q);
+    }
+}
@@ -0,0 +1,6 @@
+package me.eigenraven.mc.worldbytes;
+
+/** Implemented by NormalNoise through a mixin, caches the flattened octaves of the noise */
+public interface FlatNoiseAccess {
+    FlatNoise worldbytes$getFlatNoise();
+}
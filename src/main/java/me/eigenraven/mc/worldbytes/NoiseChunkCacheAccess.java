@@ -0,0 +1,8 @@
+package me.eigenraven.mc.worldbytes;
+
+import net.minecraft.world.level.levelgen.NoiseChunk;
+
+/** Implemented by the NoiseChunk cache inner classes through mixins, exposes the NoiseChunk that created them */
+public interface NoiseChunkCacheAccess {
+    NoiseChunk worldbytes$getOwner();
+}
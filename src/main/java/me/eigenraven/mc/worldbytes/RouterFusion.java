@@ -0,0 +1,119 @@
+package me.eigenraven.mc.worldbytes;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.minecraft.world.level.levelgen.DensityFunction;
+import net.minecraft.world.level.levelgen.DensityFunctions;
+import net.minecraft.world.level.levelgen.synth.BlendedNoise;
+
+/**
+ * Finds the subtrees that are evaluated more than once across the outputs of a noise router and replaces every use with
+ * one {@link SharedValue}, so that outputs sampled at the same position share the intermediate values.
+ */
+public final class RouterFusion {
+    private RouterFusion() {}
+
+    /** @return The outputs in the same order, with repeated position-only subtrees replaced by shared instances */
+    public static List<DensityFunction> shareCommonSubtrees(List<DensityFunction> outputs) {
+        final Map<DensityFunction, Integer> uses = new HashMap<>();
+        for (DensityFunction output : outputs) {
+            output.mapAll(node -> {
+                uses.merge(node, 1, Integer::sum);
+                return node;
+            });
+        }
+        final Set<DensityFunction> selected = selectShared(uses);
+        final Map<DensityFunction, SharedValue> shared = new HashMap<>();
+        return outputs.stream()
+                .map(output -> {
+                    // mapAll rebuilds bottom-up, so the children of the node may already be shared. It visits the
+                    // nodes in the same order every time, which pairs each rebuilt node with its original.
+                    final Iterator<DensityFunction> originals = nodes(output).iterator();
+                    return output.mapAll(node -> {
+                        final DensityFunction original = originals.next();
+                        if (!selected.contains(original)) {
+                            return node;
+                        }
+                        return shared.computeIfAbsent(original, k -> new SharedValue(node));
+                    });
+                })
+                .toList();
+    }
+
+    /**
+     * Picks the subtrees to share, largest first. Once a subtree is shared it is evaluated only once per position, so
+     * the uses of everything inside it drop accordingly, and subtrees only repeated as part of it are not shared again.
+     */
+    private static Set<DensityFunction> selectShared(Map<DensityFunction, Integer> uses) {
+        final Map<DensityFunction, List<DensityFunction>> contents = new HashMap<>();
+        final List<DensityFunction> candidates = new ArrayList<>();
+        for (Map.Entry<DensityFunction, Integer> entry : uses.entrySet()) {
+            if (entry.getValue() >= 2 && isShareable(entry.getKey())) {
+                candidates.add(entry.getKey());
+                contents.put(entry.getKey(), nodes(entry.getKey()));
+            }
+        }
+        candidates.sort(Comparator.comparingInt((DensityFunction df) -> contents.get(df).size()).reversed());
+        final Map<DensityFunction, Integer> remainingUses = new HashMap<>(uses);
+        final Set<DensityFunction> selected = new HashSet<>();
+        for (DensityFunction candidate : candidates) {
+            final int candidateUses = remainingUses.get(candidate);
+            if (candidateUses < 2) {
+                continue;
+            }
+            selected.add(candidate);
+            final List<DensityFunction> inner = contents.get(candidate);
+            // the last node visited by mapAll is the candidate itself
+            for (DensityFunction node : inner.subList(0, inner.size() - 1)) {
+                remainingUses.merge(node, 1 - candidateUses, Integer::sum);
+            }
+        }
+        return selected;
+    }
+
+    /** @return Every node of the tree, once per occurrence, in the bottom-up order of mapAll */
+    private static List<DensityFunction> nodes(DensityFunction df) {
+        final List<DensityFunction> nodes = new ArrayList<>();
+        df.mapAll(node -> {
+            nodes.add(node);
+            return node;
+        });
+        return nodes;
+    }
+
+    /**
+     * A subtree is worth sharing if it samples noise, and can be shared if its value only depends on the position:
+     * blending reads the context's blender, and interpolated or per-cell cached values depend on the NoiseChunk state.
+     */
+    private static boolean isShareable(DensityFunction df) {
+        final boolean[] samplesNoise = {false};
+        final boolean[] positionOnly = {true};
+        df.mapAll(node -> {
+            if (node instanceof DensityFunctions.Noise
+                    || node instanceof DensityFunctions.ShiftedNoise
+                    || node instanceof DensityFunctions.ShiftNoise
+                    || node instanceof DensityFunctions.WeirdScaledSampler
+                    || node instanceof DensityFunctions.EndIslandDensityFunction
+                    || node instanceof BlendedNoise) {
+                samplesNoise[0] = true;
+            } else if (node instanceof DensityFunctions.BlendDensity
+                    || node instanceof DensityFunctions.BlendAlpha
+                    || node instanceof DensityFunctions.BlendOffset
+                    || node instanceof DensityFunctions.BeardifierOrMarker) {
+                positionOnly[0] = false;
+            } else if (node instanceof DensityFunctions.Marker marker
+                    && (marker.type() == DensityFunctions.Marker.Type.Interpolated
+                            || marker.type() == DensityFunctions.Marker.Type.CacheAllInCell)) {
+                positionOnly[0] = false;
+            }
+            return node;
+        });
+        return samplesNoise[0] && positionOnly[0];
+    }
+}
@@ -0,0 +1,150 @@
+package me.eigenraven.mc.worldbytes;
+
+import net.minecraft.world.level.levelgen.DensityFunction;
+import net.minecraft.world.level.levelgen.DensityFunctions;
+
+/**
+ * A subtree used in several places of a fused noise router. The router itself is used by many threads and keeps no
+ * state, a NoiseChunk wraps each shared subtree into one {@link ChunkLocal} that remembers its value at the last
+ * position, so the other router outputs sampled at the same position reuse it instead of sampling the same noises
+ * again. The climate sampler and the depth and density outputs are a typical example. Only created by
+ * {@link RouterFusion} for subtrees whose value depends on nothing but the position, and encoded as the cache_once
+ * marker it behaves like.
+ */
+public final class SharedValue implements DensityFunctions.MarkerOrMarked {
+    private final DensityFunction wrapped;
+    private final int hash;
+
+    public SharedValue(DensityFunction wrapped) {
+        this.wrapped = wrapped;
+        this.hash = 31 * wrapped.hashCode() + 17;
+    }
+
+    @Override
+    public DensityFunctions.Marker.Type type() {
+        return DensityFunctions.Marker.Type.CacheOnce;
+    }
+
+    @Override
+    public DensityFunction wrapped() {
+        return wrapped;
+    }
+
+    /** @return The copy a NoiseChunk evaluates in place of this subtree, see the NoiseChunk mixin */
+    public DensityFunction forNoiseChunk() {
+        return new ChunkLocal(wrapped);
+    }
+
+    @Override
+    public double compute(FunctionContext context) {
+        return wrapped.compute(context);
+    }
+
+    @Override
+    public void fillArray(double[] vals, ContextProvider contextProvider) {
+        wrapped.fillArray(vals, contextProvider);
+    }
+
+    @Override
+    public DensityFunction mapAll(Visitor visitor) {
+        final DensityFunction mapped = wrapped.mapAll(visitor);
+        // an unchanged subtree keeps the instance, so the outputs mapped with it still share it
+        return visitor.apply(mapped.equals(wrapped) ? this : new SharedValue(mapped));
+    }
+
+    @Override
+    public double minValue() {
+        return wrapped.minValue();
+    }
+
+    @Override
+    public double maxValue() {
+        return wrapped.maxValue();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        return o instanceof SharedValue that && hash == that.hash && wrapped.equals(that.wrapped);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedValue[" + wrapped + "]";
+    }
+
+    /**
+     * The shared subtree within a single NoiseChunk, which is filled by one thread at a time. NoiseChunk wraps equal
+     * functions only once, so all the outputs of its router reach the same instance.
+     */
+    public static final class ChunkLocal implements DensityFunctions.MarkerOrMarked {
+        private final DensityFunction wrapped;
+        private boolean computed;
+        private int lastX;
+        private int lastY;
+        private int lastZ;
+        private double lastValue;
+
+        private ChunkLocal(DensityFunction wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public DensityFunctions.Marker.Type type() {
+            return DensityFunctions.Marker.Type.CacheOnce;
+        }
+
+        @Override
+        public DensityFunction wrapped() {
+            return wrapped;
+        }
+
+        @Override
+        public double compute(FunctionContext context) {
+            final int x = context.blockX();
+            final int y = context.blockY();
+            final int z = context.blockZ();
+            if (computed && lastX == x && lastY == y && lastZ == z) {
+                return lastValue;
+            }
+            final double value = wrapped.compute(context);
+            computed = true;
+            lastX = x;
+            lastY = y;
+            lastZ = z;
+            lastValue = value;
+            return value;
+        }
+
+        @Override
+        public void fillArray(double[] vals, ContextProvider contextProvider) {
+            wrapped.fillArray(vals, contextProvider);
+        }
+
+        @Override
+        public DensityFunction mapAll(Visitor visitor) {
+            // the remembered value belongs to this chunk, mapped copies start from the stateless shared value
+            return visitor.apply(new SharedValue(wrapped.mapAll(visitor)));
+        }
+
+        @Override
+        public double minValue() {
+            return wrapped.minValue();
+        }
+
+        @Override
+        public double maxValue() {
+            return wrapped.maxValue();
+        }
+
+        @Override
+        public String toString() {
+            return "SharedValue.ChunkLocal[" + wrapped + "]";
+        }
+    }
+}
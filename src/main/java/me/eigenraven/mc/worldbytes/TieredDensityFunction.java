@@ -0,0 +1,128 @@
+package me.eigenraven.mc.worldbytes;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+import net.minecraft.util.KeyDispatchDataCodec;
+import net.minecraft.world.level.levelgen.DensityFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A router output that is evaluated by the vanilla functions until it has been used often enough, and then compiled on
+ * a background thread and swapped for the compiled function.
+ */
+public final class TieredDensityFunction implements DensityFunction {
+    private static final Logger logger = LoggerFactory.getLogger("worldbytes-DFC");
+    /** Number of compute and fillArray calls of a single copy after which the function is queued for compilation */
+    public static final int COMPILE_THRESHOLD = Integer.getInteger("worldbytes.compiler.tierThreshold", 256);
+
+    private static final ExecutorService compileExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "WorldBytes-Compiler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    /** The shell created for the router, copies made by mapAll count their invocations towards it */
+    private final TieredDensityFunction root;
+    /** The unmapped vanilla function, compiled once the threshold is reached */
+    private final DensityFunction original;
+
+    /** Compiles the original function, dropped after it ran so that the router cache it captures can be collected */
+    private volatile UnaryOperator<DensityFunction> compiler;
+    /** Calls made on this copy, a plain field because lost increments only delay the compilation a little */
+    private int invocations;
+    private final AtomicBoolean queued;
+    private volatile DensityFunction delegate;
+
+    public TieredDensityFunction(DensityFunction original, UnaryOperator<DensityFunction> compiler) {
+        this.root = this;
+        this.original = original;
+        this.compiler = compiler;
+        this.queued = new AtomicBoolean();
+        this.delegate = original;
+        if (COMPILE_THRESHOLD <= 0) {
+            queueCompilation();
+        }
+    }
+
+    private TieredDensityFunction(TieredDensityFunction root, DensityFunction mapped) {
+        this.root = root;
+        this.original = root.original;
+        this.compiler = null;
+        this.queued = null;
+        this.delegate = mapped;
+    }
+
+    /** @return Whether the compiled function replaced the vanilla one */
+    public boolean isCompiled() {
+        return root.delegate != original;
+    }
+
+    private void countInvocation() {
+        // copies stop writing the counter once they reached the threshold
+        if (invocations < COMPILE_THRESHOLD && ++invocations >= COMPILE_THRESHOLD) {
+            root.queueCompilation();
+        }
+    }
+
+    private void queueCompilation() {
+        if (!queued.compareAndSet(false, true)) {
+            return;
+        }
+        compileExecutor.execute(() -> {
+            try {
+                delegate = compiler.apply(original);
+                logger.debug("Swapped in the compiled function for {}", original);
+            } catch (Exception e) {
+                logger.error("Could not compile {}, staying with the vanilla function", original, e);
+            } finally {
+                compiler = null;
+            }
+        });
+    }
+
+    @Override
+    public double compute(FunctionContext context) {
+        countInvocation();
+        return delegate.compute(context);
+    }
+
+    @Override
+    public void fillArray(double[] vals, ContextProvider contextProvider) {
+        countInvocation();
+        delegate.fillArray(vals, contextProvider);
+    }
+
+    @Override
+    public DensityFunction mapAll(Visitor visitor) {
+        final DensityFunction current = delegate;
+        if (root == this && current != original) {
+            return current.mapAll(visitor);
+        }
+        // Mapped copies keep their mapped vanilla function, they are short-lived compared to the router
+        return visitor.apply(new TieredDensityFunction(root, current.mapAll(visitor)));
+    }
+
+    @Override
+    public double minValue() {
+        return original.minValue();
+    }
+
+    @Override
+    public double maxValue() {
+        return original.maxValue();
+    }
+
+    @Override
+    public KeyDispatchDataCodec<? extends DensityFunction> codec() {
+        return original.codec();
+    }
+
+    @Override
+    public String toString() {
+        return "TieredDensityFunction[" + delegate + "]";
+    }
+}
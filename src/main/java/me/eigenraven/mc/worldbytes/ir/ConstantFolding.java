@@ -0,0 +1,124 @@
+package me.eigenraven.mc.worldbytes.ir;
+
+import net.minecraft.world.level.levelgen.DensityFunctions;
+
+/**
+ * Evaluates nodes whose inputs are all constant, turns Ap2 nodes with a constant argument into their MulOrAdd form and
+ * removes the identities of addition and multiplication. Double arithmetic is not associative, so chains of
+ * multiplications are only merged when the single multiplication rounds the same way, and chains of additions are kept.
+ */
+public final class ConstantFolding implements Pass {
+    @Override
+    public String name() {
+        return "fold";
+    }
+
+    @Override
+    public Node run(Node root) {
+        final RangeAnalysis analysis = new RangeAnalysis();
+        return root.transform(node -> fold(node, analysis));
+    }
+
+    private static Node fold(Node gnode, RangeAnalysis analysis) {
+        if (gnode instanceof Node.AddConst node) {
+            if (node.input() instanceof Node.Const c) {
+                return new Node.Const(c.value() + node.offset());
+            }
+            final boolean negativeZero = Double.doubleToRawLongBits(node.offset()) == Long.MIN_VALUE;
+            // -0.0 + +0.0 is +0.0, adding +0.0 is only an identity for inputs that are never zero
+            if (negativeZero || (node.offset() == 0.0 && !analysis.rangeOf(node.input()).containsZero())) {
+                return node.input();
+            }
+        } else if (gnode instanceof Node.MulConst node) {
+            if (node.input() instanceof Node.Const c) {
+                return new Node.Const(c.value() * node.factor());
+            } else if (node.factor() == 1.0) {
+                return node.input();
+            } else if (node.factor() == 0.0) {
+                final Range input = analysis.rangeOf(node.input());
+                // the sign of the zero is the sign of the input, infinities and NaN make NaN
+                if (!input.nan()
+                        && !input.containsZero()
+                        && Double.isFinite(input.min())
+                        && Double.isFinite(input.max())) {
+                    return new Node.Const(input.min() * node.factor());
+                }
+            } else if (node.input() instanceof Node.MulConst inner && exactProduct(inner.factor(), node.factor())) {
+                return new Node.MulConst(inner.input(), inner.factor() * node.factor());
+            }
+        } else if (gnode instanceof Node.Add node) {
+            if (node.a() instanceof Node.Const a && node.b() instanceof Node.Const b) {
+                return new Node.Const(a.value() + b.value());
+            } else if (node.b() instanceof Node.Const b) {
+                return new Node.AddConst(node.a(), b.value());
+            } else if (node.a() instanceof Node.Const a) {
+                // addition is commutative
+                return new Node.AddConst(node.b(), a.value());
+            }
+        } else if (gnode instanceof Node.Mul node) {
+            if (node.a() instanceof Node.Const a) {
+                // a zero first argument short-circuits to +0.0, whatever its sign
+                return a.value() == 0.0 ? new Node.Const(0.0) : fold(new Node.MulConst(node.b(), a.value()), analysis);
+            } else if (node.b() instanceof Node.Const b && !analysis.rangeOf(node.a()).containsZero()) {
+                return fold(new Node.MulConst(node.a(), b.value()), analysis);
+            }
+        } else if (gnode instanceof Node.Min node) {
+            if (node.a() instanceof Node.Const a && node.b() instanceof Node.Const b) {
+                return new Node.Const(a.value() < node.bMin() ? a.value() : Math.min(a.value(), b.value()));
+            }
+        } else if (gnode instanceof Node.Max node) {
+            if (node.a() instanceof Node.Const a && node.b() instanceof Node.Const b) {
+                return new Node.Const(a.value() > node.bMax() ? a.value() : Math.max(a.value(), b.value()));
+            }
+        } else if (gnode instanceof Node.Clamp node) {
+            if (node.input() instanceof Node.Const c) {
+                return new Node.Const(RangeAnalysis.clamp(c.value(), node.min(), node.max()));
+            }
+        } else if (gnode instanceof Node.Mapped node) {
+            if (node.input() instanceof Node.Const c) {
+                return new Node.Const(mapped(c.value(), node.type()));
+            }
+        } else if (gnode instanceof Node.Squeeze node) {
+            if (node.input() instanceof Node.Const c) {
+                return new Node.Const(RangeAnalysis.squeeze(c.value()));
+            }
+        } else if (gnode instanceof Node.RangeChoice node) {
+            if (node.input() instanceof Node.Const c) {
+                final double value = c.value();
+                return value >= node.minInclusive() && value < node.maxExclusive()
+                        ? node.whenInRange()
+                        : node.whenOutOfRange();
+            }
+        }
+        return gnode;
+    }
+
+    /**
+     * @return Whether x * a * b rounds like x * (a * b) for every x: when either factor is 1 or -1, or when both are
+     *     powers of two scaling up without overflowing, so that the first product is exact unless both overflow
+     */
+    private static boolean exactProduct(double a, double b) {
+        return Math.abs(a) == 1.0
+                || Math.abs(b) == 1.0
+                || (isPowerOfTwoScaleUp(a) && isPowerOfTwoScaleUp(b) && Double.isFinite(a * b));
+    }
+
+    private static boolean isPowerOfTwoScaleUp(double factor) {
+        final double magnitude = Math.abs(factor);
+        return magnitude >= 1.0
+                && Double.isFinite(magnitude)
+                && magnitude == Math.scalb(1.0, Math.getExponent(factor));
+    }
+
+    /** DensityFunctions.Mapped.transform */
+    private static double mapped(double d, DensityFunctions.Mapped.Type type) {
+        return switch (type) {
+            case ABS -> Math.abs(d);
+            case SQUARE -> d * d;
+            case CUBE -> d * d * d;
+            case HALF_NEGATIVE -> d > 0.0 ? d : d * 0.5;
+            case QUARTER_NEGATIVE -> d > 0.0 ? d : d * 0.25;
+            case SQUEEZE -> RangeAnalysis.squeeze(RangeAnalysis.clamp(d, -1.0, 1.0));
+        };
+    }
+}
@@ -0,0 +1,114 @@
+package me.eigenraven.mc.worldbytes.ir;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import me.eigenraven.mc.worldbytes.SharedValue;
+import net.minecraft.util.CubicSpline;
+import net.minecraft.world.level.levelgen.DensityFunction;
+import net.minecraft.world.level.levelgen.DensityFunctions;
+import net.minecraft.world.level.levelgen.synth.BlendedNoise;
+
+/** Translates a DensityFunction tree into the compiler's expression tree */
+public final class IrBuilder {
+    /** Vanilla reuses spline objects inside larger splines, they are translated once to be generated once */
+    private final IdentityHashMap<
+                    CubicSpline<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate>, SplineValue>
+            splines = new IdentityHashMap<>();
+
+    private IrBuilder() {}
+
+    public static Node build(DensityFunction df) {
+        return new IrBuilder().node(df, true);
+    }
+
+    /**
+     * @param arrayFilled Whether vanilla fills the function as a whole array when the root, or the wrapped function of
+     *     the nearest enclosing marker, is filled as an array
+     */
+    private Node node(DensityFunction gdf, boolean arrayFilled) {
+        if (gdf instanceof DensityFunctions.Constant df) {
+            return new Node.Const(df.value());
+        } else if (gdf instanceof DensityFunctions.MulOrAdd df) {
+            return switch (df.type()) {
+                case ADD -> new Node.AddConst(node(df.input(), arrayFilled), df.argument());
+                case MUL -> new Node.MulConst(node(df.input(), arrayFilled), df.argument());
+                default -> throw new IllegalStateException(df.type().getSerializedName());
+            };
+        } else if (gdf instanceof DensityFunctions.Ap2 df) {
+            final Node a = node(df.argument1(), arrayFilled);
+            return switch (df.type()) {
+                    // both arguments are filled as arrays
+                case ADD -> new Node.Add(a, node(df.argument2(), arrayFilled));
+                    // the second argument is computed only where needed
+                case MUL -> new Node.Mul(a, node(df.argument2(), false));
+                case MIN -> new Node.Min(a, node(df.argument2(), false), df.argument2().minValue());
+                case MAX -> new Node.Max(a, node(df.argument2(), false), df.argument2().maxValue());
+            };
+        } else if (gdf instanceof DensityFunctions.BlendDensity df) {
+            return new Node.BlendDensity(node(df.input(), arrayFilled));
+        } else if (gdf instanceof DensityFunctions.Clamp df) {
+            return new Node.Clamp(node(df.input(), arrayFilled), df.minValue(), df.maxValue());
+        } else if (gdf instanceof DensityFunctions.HolderHolder df) {
+            return node(df.function().value(), arrayFilled);
+        } else if (gdf instanceof DensityFunctions.Mapped df) {
+            if (df.type() == DensityFunctions.Mapped.Type.SQUEEZE) {
+                // the clamp is a node of its own, so that it can be removed for inputs within [-1, 1]
+                return new Node.Squeeze(new Node.Clamp(node(df.input(), arrayFilled), -1.0, 1.0));
+            }
+            return new Node.Mapped(node(df.input(), arrayFilled), df.type());
+        } else if (gdf instanceof DensityFunctions.RangeChoice df) {
+            return new Node.RangeChoice(
+                    node(df.input(), arrayFilled),
+                    df.minInclusive(),
+                    df.maxExclusive(),
+                    // only the chosen branch is computed
+                    node(df.whenInRange(), false),
+                    node(df.whenOutOfRange(), false));
+        } else if (gdf instanceof DensityFunctions.Noise df) {
+            return new Node.Noise(df.noise(), df.xzScale(), df.yScale());
+        } else if (gdf instanceof DensityFunctions.ShiftedNoise df) {
+            return new Node.ShiftedNoise(
+                    node(df.shiftX(), false),
+                    node(df.shiftY(), false),
+                    node(df.shiftZ(), false),
+                    df.xzScale(),
+                    df.yScale(),
+                    df.noise());
+        } else if (gdf instanceof DensityFunctions.WeirdScaledSampler df) {
+            // the input is filled as an array, like every TransformerWithContext
+            return new Node.WeirdScaledSampler(node(df.input(), arrayFilled), df.noise(), df.rarityValueMapper());
+        } else if (gdf instanceof DensityFunctions.Spline df) {
+            return new Node.Spline(spline(df.spline()), df.minValue(), df.maxValue());
+        } else if (gdf instanceof DensityFunctions.YClampedGradient df) {
+            return new Node.YClampedGradient(df.fromY(), df.toY(), df.fromValue(), df.toValue());
+        } else if (gdf instanceof DensityFunctions.Marker df) {
+            return new Node.Marker(df.type(), node(df.wrapped(), true), df, arrayFilled);
+        } else if (gdf instanceof BlendedNoise df) {
+            return new Node.OldBlendedNoise(df);
+        } else if (gdf instanceof DensityFunctions.EndIslandDensityFunction df) {
+            return new Node.EndIslands(df);
+        } else if (gdf instanceof SharedValue df) {
+            return new Node.Shared(df);
+        }
+        return new Node.Opaque(gdf);
+    }
+
+    private SplineValue spline(CubicSpline<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate> spline) {
+        final SplineValue existing = splines.get(spline);
+        if (existing != null) {
+            return existing;
+        }
+        final SplineValue value;
+        if (spline instanceof CubicSpline.Constant<?, ?> c) {
+            value = new SplineValue.Constant(c.value());
+        } else {
+            final CubicSpline.Multipoint<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate> mp =
+                    (CubicSpline.Multipoint<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate>) spline;
+            final List<SplineValue> values = mp.values().stream().map(this::spline).toList();
+            value = new SplineValue.Multipoint(
+                    node(mp.coordinate().function().value(), false), mp.locations(), values, mp.derivatives());
+        }
+        splines.put(spline, value);
+        return value;
+    }
+}
@@ -0,0 +1,279 @@
+package me.eigenraven.mc.worldbytes.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import me.eigenraven.mc.worldbytes.SharedValue;
+import net.minecraft.world.level.levelgen.DensityFunction;
+import net.minecraft.world.level.levelgen.DensityFunctions;
+import net.minecraft.world.level.levelgen.synth.BlendedNoise;
+
+/**
+ * An expression of the tree the compiler optimizes and generates code from. Nodes are immutable and compare
+ * structurally, each evaluates to a double at the position of a FunctionContext with the exact semantics of the vanilla
+ * function it was built from, including NaN and signed zero results.
+ */
+public sealed interface Node {
+    /** @return This node with every direct child replaced by the mapper's result, or this node if none changed */
+    Node mapChildren(UnaryOperator<Node> mapper);
+
+    /** @return The direct children, in evaluation order */
+    default List<Node> children() {
+        final List<Node> children = new ArrayList<>();
+        mapChildren(child -> {
+            children.add(child);
+            return child;
+        });
+        return children;
+    }
+
+    /** Rewrites the tree bottom-up like DensityFunction.mapAll, unchanged subtrees keep their identity */
+    default Node transform(UnaryOperator<Node> rewriter) {
+        return rewriter.apply(mapChildren(child -> child.transform(rewriter)));
+    }
+
+    record Const(double value) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            return this;
+        }
+    }
+
+    /** MulOrAdd of type ADD: input + offset */
+    record AddConst(Node input, double offset) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newInput = mapper.apply(input);
+            return newInput == input ? this : new AddConst(newInput, offset);
+        }
+    }
+
+    /** MulOrAdd of type MUL: input * factor */
+    record MulConst(Node input, double factor) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newInput = mapper.apply(input);
+            return newInput == input ? this : new MulConst(newInput, factor);
+        }
+    }
+
+    /** Ap2 of type ADD: a + b */
+    record Add(Node a, Node b) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newA = mapper.apply(a);
+            final Node newB = mapper.apply(b);
+            return newA == a && newB == b ? this : new Add(newA, newB);
+        }
+    }
+
+    /** Ap2 of type MUL: a == 0 ? 0 : a * b, b is not evaluated when a is zero */
+    record Mul(Node a, Node b) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newA = mapper.apply(a);
+            final Node newB = mapper.apply(b);
+            return newA == a && newB == b ? this : new Mul(newA, newB);
+        }
+    }
+
+    /**
+     * Ap2 of type MIN: a < bMin ? a : min(a, b), b is not evaluated below the bound
+     * @param bMin The minimum value of b as reported by the vanilla function
+     */
+    record Min(Node a, Node b, double bMin) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newA = mapper.apply(a);
+            final Node newB = mapper.apply(b);
+            return newA == a && newB == b ? this : new Min(newA, newB, bMin);
+        }
+    }
+
+    /**
+     * Ap2 of type MAX: a > bMax ? a : max(a, b), b is not evaluated above the bound
+     * @param bMax The maximum value of b as reported by the vanilla function
+     */
+    record Max(Node a, Node b, double bMax) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newA = mapper.apply(a);
+            final Node newB = mapper.apply(b);
+            return newA == a && newB == b ? this : new Max(newA, newB, bMax);
+        }
+    }
+
+    record Clamp(Node input, double min, double max) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newInput = mapper.apply(input);
+            return newInput == input ? this : new Clamp(newInput, min, max);
+        }
+    }
+
+    /** Mapped of any type but SQUEEZE, which is built as Squeeze(Clamp(input, -1, 1)) */
+    record Mapped(Node input, DensityFunctions.Mapped.Type type) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newInput = mapper.apply(input);
+            return newInput == input ? this : new Mapped(newInput, type);
+        }
+    }
+
+    /** e / 2 - e * e * e / 24, the part of Mapped SQUEEZE after clamping e to [-1, 1] */
+    record Squeeze(Node input) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newInput = mapper.apply(input);
+            return newInput == input ? this : new Squeeze(newInput);
+        }
+    }
+
+    /** input >= minInclusive && input < maxExclusive ? whenInRange : whenOutOfRange, only one branch is evaluated */
+    record RangeChoice(Node input, double minInclusive, double maxExclusive, Node whenInRange, Node whenOutOfRange)
+            implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newInput = mapper.apply(input);
+            final Node newInRange = mapper.apply(whenInRange);
+            final Node newOutOfRange = mapper.apply(whenOutOfRange);
+            return newInput == input && newInRange == whenInRange && newOutOfRange == whenOutOfRange
+                    ? this
+                    : new RangeChoice(newInput, minInclusive, maxExclusive, newInRange, newOutOfRange);
+        }
+    }
+
+    record YClampedGradient(int fromY, int toY, double fromValue, double toValue) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            return this;
+        }
+    }
+
+    /** noise.getValue(x * xzScale, y * yScale, z * xzScale) */
+    record Noise(DensityFunction.NoiseHolder noise, double xzScale, double yScale) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            return this;
+        }
+    }
+
+    /** noise.getValue(x * xzScale + shiftX, y * yScale + shiftY, z * xzScale + shiftZ) */
+    record ShiftedNoise(
+            Node shiftX, Node shiftY, Node shiftZ, double xzScale, double yScale, DensityFunction.NoiseHolder noise)
+            implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newX = mapper.apply(shiftX);
+            final Node newY = mapper.apply(shiftY);
+            final Node newZ = mapper.apply(shiftZ);
+            return newX == shiftX && newY == shiftY && newZ == shiftZ
+                    ? this
+                    : new ShiftedNoise(newX, newY, newZ, xzScale, yScale, noise);
+        }
+    }
+
+    /**
+     * rarity(input) * abs(noise.getValue(x / rarity, y / rarity, z / rarity)), with the rarity quantized by the
+     * thresholds of NoiseRouterData.QuantizedSpaghettiRarity
+     */
+    record WeirdScaledSampler(
+            Node input,
+            DensityFunction.NoiseHolder noise,
+            DensityFunctions.WeirdScaledSampler.RarityValueMapper rarityValueMapper)
+            implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newInput = mapper.apply(input);
+            return newInput == input ? this : new WeirdScaledSampler(newInput, noise, rarityValueMapper);
+        }
+
+        /** @return The exclusive upper bounds of the input for each rarity but the last one */
+        public double[] thresholds() {
+            return switch (rarityValueMapper) {
+                case TYPE1 -> new double[] {-0.5, 0.0, 0.5};
+                case TYPE2 -> new double[] {-0.75, -0.5, 0.5, 0.75};
+            };
+        }
+
+        /** @return The rarity below each threshold, and the rarity of all other inputs including NaN */
+        public double[] rarities() {
+            return switch (rarityValueMapper) {
+                case TYPE1 -> new double[] {0.75, 1.0, 1.5, 2.0};
+                case TYPE2 -> new double[] {0.5, 0.75, 1.0, 2.0, 3.0};
+            };
+        }
+    }
+
+    /**
+     * The float value of the spline, widened to a double
+     * @param minValue The minimum of the spline as computed by vanilla
+     * @param maxValue The maximum of the spline as computed by vanilla
+     */
+    record Spline(SplineValue spline, double minValue, double maxValue) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final SplineValue newSpline = spline.mapCoordinates(mapper);
+            return newSpline == spline ? this : new Spline(newSpline, minValue, maxValue);
+        }
+    }
+
+    /** The input with the blender of the FunctionContext applied */
+    record BlendDensity(Node input) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newInput = mapper.apply(input);
+            return newInput == input ? this : new BlendDensity(newInput);
+        }
+    }
+
+    /**
+     * A cache marker, NoiseChunk replaces it with its caches so it is never optimized away
+     * @param wrapped The function evaluated when the cache misses
+     * @param original The vanilla marker, stored for mapAll and for the NoiseChunk to wrap
+     * @param arrayFilled Whether vanilla fills the marker as a whole array when the root of the tree, or the wrapped
+     *     function of the nearest enclosing marker, is filled as an array. The caches of NoiseChunk return different
+     *     values in fillArray, so this is kept when rewrites move the marker to a different parent.
+     */
+    record Marker(
+            DensityFunctions.Marker.Type type, Node wrapped, DensityFunctions.Marker original, boolean arrayFilled)
+            implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            final Node newWrapped = mapper.apply(wrapped);
+            return newWrapped == wrapped ? this : new Marker(type, newWrapped, original, arrayFilled);
+        }
+    }
+
+    /** BlendedNoise, old_blended_noise, the function is stored for mapAll to replace */
+    record OldBlendedNoise(BlendedNoise function) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            return this;
+        }
+    }
+
+    /** EndIslandDensityFunction, the function is stored for mapAll to replace */
+    record EndIslands(DensityFunctions.EndIslandDensityFunction function) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            return this;
+        }
+    }
+
+    /** A subtree shared between the outputs of a fused router, evaluated through the shared instance */
+    record Shared(SharedValue value) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            return this;
+        }
+    }
+
+    /** A function the compiler does not look into, evaluated by calling its compute method */
+    record Opaque(DensityFunction function) implements Node {
+        @Override
+        public Node mapChildren(UnaryOperator<Node> mapper) {
+            return this;
+        }
+    }
+}
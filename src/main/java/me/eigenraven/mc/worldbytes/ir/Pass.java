@@ -0,0 +1,10 @@
+package me.eigenraven.mc.worldbytes.ir;
+
+/** An optimization of the expression tree, it must keep the exact value of the tree at every position */
+public interface Pass {
+    /** @return The name used to disable the pass with -Dworldbytes.compiler.disabledPasses */
+    String name();
+
+    /** @return The optimized tree, or the same tree if there was nothing to do */
+    Node run(Node root);
+}
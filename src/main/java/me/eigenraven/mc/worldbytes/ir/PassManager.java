@@ -0,0 +1,49 @@
+package me.eigenraven.mc.worldbytes.ir;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Runs a fixed sequence of passes over the expression tree of every compiled function */
+public final class PassManager {
+    private static final Logger logger = LoggerFactory.getLogger("worldbytes-DFC");
+    /** Comma separated names of passes to skip, to narrow down miscompilations */
+    private static final Set<String> disabledPasses = Arrays.stream(
+                    System.getProperty("worldbytes.compiler.disabledPasses", "").split(","))
+            .map(String::trim)
+            .filter(name -> !name.isEmpty())
+            .collect(Collectors.toUnmodifiableSet());
+
+    private final List<Pass> passes;
+
+    public PassManager(List<Pass> passes) {
+        this.passes = passes.stream()
+                .filter(pass -> !disabledPasses.contains(pass.name()))
+                .toList();
+    }
+
+    /** @return The pipeline used by DensityFunctionCompiler */
+    public static PassManager defaultPipeline() {
+        // folding runs again on the constants left by resolved choices and clamps
+        return new PassManager(List.of(new ConstantFolding(), new RangeSimplification(), new ConstantFolding()));
+    }
+
+    public List<Pass> passes() {
+        return passes;
+    }
+
+    public Node run(Node root) {
+        Node current = root;
+        for (Pass pass : passes) {
+            final Node result = pass.run(current);
+            if (result != current && logger.isTraceEnabled()) {
+                logger.trace("Pass {} rewrote {} into {}", pass.name(), current, result);
+            }
+            current = result;
+        }
+        return current;
+    }
+}
@@ -0,0 +1,83 @@
+package me.eigenraven.mc.worldbytes.ir;
+
+/**
+ * The values an expression can take: every non-NaN value lies within [min, max], and NaN is possible only if nan is
+ * set. Both zeros compare equal, like the comparisons of the generated code. Operations round like the double
+ * arithmetic they bound, which is monotonic, so the bounds hold exactly and need no outward rounding.
+ */
+public record Range(double min, double max, boolean nan) {
+    public static final Range FULL = new Range(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, true);
+
+    public Range {
+        if (Double.isNaN(min) || Double.isNaN(max)) {
+            // a bound computed from NaN bounds nothing
+            min = Double.NEGATIVE_INFINITY;
+            max = Double.POSITIVE_INFINITY;
+            nan = true;
+        }
+    }
+
+    public static Range of(double value) {
+        return new Range(value, value, false);
+    }
+
+    /** @return Whether every value other than NaN lies within [min, max] */
+    public boolean within(double min, double max) {
+        return this.min >= min && this.max <= max;
+    }
+
+    public boolean containsZero() {
+        return min <= 0.0 && max >= 0.0;
+    }
+
+    public Range withNaN(boolean nan) {
+        return nan == this.nan ? this : new Range(min, max, nan);
+    }
+
+    public Range union(Range other) {
+        return new Range(Math.min(min, other.min), Math.max(max, other.max), nan || other.nan);
+    }
+
+    /**
+     * Widens the bounds by a few ulps of the largest magnitude, for values computed with more than one rounding such as
+     * lerps, or bounds reported by vanilla functions
+     */
+    public Range widen(int ulps) {
+        final double slack = ulps * Math.ulp(Math.max(Math.abs(min), Math.abs(max)));
+        return new Range(min - slack, max + slack, nan);
+    }
+
+    public static Range add(Range a, Range b) {
+        final double min = a.min + b.min;
+        final double max = a.max + b.max;
+        // -inf + inf is the only way for a sum of numbers to be NaN
+        final boolean infinities = (a.min == Double.NEGATIVE_INFINITY && b.max == Double.POSITIVE_INFINITY)
+                || (a.max == Double.POSITIVE_INFINITY && b.min == Double.NEGATIVE_INFINITY);
+        return new Range(
+                Double.isNaN(min) ? Double.NEGATIVE_INFINITY : min,
+                Double.isNaN(max) ? Double.POSITIVE_INFINITY : max,
+                a.nan || b.nan || infinities);
+    }
+
+    public static Range multiply(Range a, Range b) {
+        final double p1 = a.min * b.min;
+        final double p2 = a.min * b.max;
+        final double p3 = a.max * b.min;
+        final double p4 = a.max * b.max;
+        if (Double.isNaN(p1) || Double.isNaN(p2) || Double.isNaN(p3) || Double.isNaN(p4)) {
+            // 0 * inf, the products between the endpoints are unbounded
+            return FULL;
+        }
+        // zero times an infinity in the other range is NaN, even if neither is an endpoint
+        final boolean zeroTimesInfinity =
+                (a.containsZero() && b.hasInfinity()) || (b.containsZero() && a.hasInfinity());
+        return new Range(
+                Math.min(Math.min(p1, p2), Math.min(p3, p4)),
+                Math.max(Math.max(p1, p2), Math.max(p3, p4)),
+                a.nan || b.nan || zeroTimesInfinity);
+    }
+
+    private boolean hasInfinity() {
+        return Double.isInfinite(min) || Double.isInfinite(max);
+    }
+}
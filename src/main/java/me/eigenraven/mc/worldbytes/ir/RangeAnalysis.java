@@ -0,0 +1,232 @@
+package me.eigenraven.mc.worldbytes.ir;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import me.eigenraven.mc.worldbytes.DensityFunctionUtils;
+import net.minecraft.world.level.levelgen.DensityFunction;
+import net.minecraft.world.level.levelgen.DensityFunctions;
+import net.minecraft.world.level.levelgen.synth.NormalNoise;
+
+/**
+ * Bounds the values of expressions. Unlike the minValue and maxValue of vanilla functions, the bounds are exact for
+ * the double arithmetic of the generated code and track whether NaN is possible, so optimizations based on them never
+ * change a result.
+ */
+public final class RangeAnalysis {
+    /** Block coordinates are ints */
+    private static final double COORDINATE_BOUND = 0x1p31;
+    /**
+     * PerlinNoise.wrap brings smaller noise inputs back within a period of the origin, where ImprovedNoise stays within
+     * its bounds. The long it rounds to saturates for larger inputs, and infinite ones turn into NaN.
+     */
+    private static final double WRAP_BOUND = 0x1p87;
+
+    private final IdentityHashMap<Node, Range> ranges = new IdentityHashMap<>();
+
+    public Range rangeOf(Node node) {
+        final Range existing = ranges.get(node);
+        if (existing != null) {
+            return existing;
+        }
+        final Range range = compute(node);
+        ranges.put(node, range);
+        return range;
+    }
+
+    private Range compute(Node gnode) {
+        if (gnode instanceof Node.Const node) {
+            return Range.of(node.value());
+        } else if (gnode instanceof Node.AddConst node) {
+            return Range.add(rangeOf(node.input()), Range.of(node.offset()));
+        } else if (gnode instanceof Node.MulConst node) {
+            return Range.multiply(rangeOf(node.input()), Range.of(node.factor()));
+        } else if (gnode instanceof Node.Add node) {
+            return Range.add(rangeOf(node.a()), rangeOf(node.b()));
+        } else if (gnode instanceof Node.Mul node) {
+            final Range a = rangeOf(node.a());
+            final Range product = Range.multiply(a, rangeOf(node.b()));
+            // a zero first argument short-circuits to 0
+            return a.containsZero() ? product.union(Range.of(0.0)) : product;
+        } else if (gnode instanceof Node.Min node) {
+            final Range a = rangeOf(node.a());
+            final Range b = rangeOf(node.b());
+            // the short-circuit returns a only below the bound
+            return new Range(
+                    Math.min(a.min(), b.min()), Math.min(a.max(), Math.max(b.max(), node.bMin())), a.nan() || b.nan());
+        } else if (gnode instanceof Node.Max node) {
+            final Range a = rangeOf(node.a());
+            final Range b = rangeOf(node.b());
+            return new Range(
+                    Math.max(a.min(), Math.min(b.min(), node.bMax())), Math.max(a.max(), b.max()), a.nan() || b.nan());
+        } else if (gnode instanceof Node.Clamp node) {
+            final Range input = rangeOf(node.input());
+            final double low = clamp(input.min(), node.min(), node.max());
+            final double high = clamp(input.max(), node.min(), node.max());
+            // a clamp with min > max is not monotonic, it maps the input to either bound
+            return new Range(Math.min(low, high), Math.max(low, high), input.nan());
+        } else if (gnode instanceof Node.Mapped node) {
+            return mapped(rangeOf(node.input()), node.type());
+        } else if (gnode instanceof Node.Squeeze node) {
+            final Range input = rangeOf(node.input());
+            if (!input.within(-1.0, 1.0)) {
+                return Range.FULL;
+            }
+            // e / 2 - e * e * e / 24 is increasing on [-1, 1]
+            return new Range(squeeze(input.min()), squeeze(input.max()), input.nan()).widen(2);
+        } else if (gnode instanceof Node.RangeChoice node) {
+            final Range input = rangeOf(node.input());
+            final Range inRange = rangeOf(node.whenInRange());
+            final Range outOfRange = rangeOf(node.whenOutOfRange());
+            if (isOutOfRange(input, node.minInclusive(), node.maxExclusive())) {
+                return outOfRange;
+            } else if (isInRange(input, node.minInclusive(), node.maxExclusive())) {
+                return inRange;
+            }
+            return inRange.union(outOfRange);
+        } else if (gnode instanceof Node.YClampedGradient node) {
+            // lerp can round past either end
+            return new Range(
+                            Math.min(node.fromValue(), node.toValue()),
+                            Math.max(node.fromValue(), node.toValue()),
+                            // inverseLerp divides by zero for an empty gradient, lerp subtracts infinities
+                            node.fromY() == node.toY()
+                                    || !Double.isFinite(node.fromValue())
+                                    || !Double.isFinite(node.toValue()))
+                    .widen(4);
+        } else if (gnode instanceof Node.Noise node) {
+            return noise(node.noise(), scaledCoordinateBound(node.xzScale(), node.yScale()));
+        } else if (gnode instanceof Node.ShiftedNoise node) {
+            // a NaN shift makes the bound NaN
+            final double shift = Math.max(
+                    magnitude(rangeOf(node.shiftX())),
+                    Math.max(magnitude(rangeOf(node.shiftY())), magnitude(rangeOf(node.shiftZ()))));
+            return noise(node.noise(), scaledCoordinateBound(node.xzScale(), node.yScale()) + shift);
+        } else if (gnode instanceof Node.WeirdScaledSampler node) {
+            // the coordinates are divided by a finite rarity, the rarity of a NaN input is the last one
+            final double maxRarity = Arrays.stream(node.rarities()).max().orElseThrow();
+            return new Range(0.0, maxRarity * noise(node.noise(), 0.0).max(), false).widen(4);
+        } else if (gnode instanceof Node.Spline node) {
+            // A NaN coordinate extends the last point of the spline linearly
+            final boolean[] nan = {false};
+            final boolean[] bounded = {true};
+            node.mapChildren(coordinate -> {
+                final Range range = rangeOf(coordinate);
+                nan[0] |= range.nan();
+                bounded[0] &= Double.isFinite(range.min()) && Double.isFinite(range.max());
+                return coordinate;
+            });
+            if (!bounded[0]) {
+                // Vanilla bounds the spline by the bounds of its coordinates, which opaque functions need not keep
+                return Range.FULL;
+            }
+            // The vanilla spline bounds are computed in float precision
+            final double magnitude = Math.max(Math.abs(node.minValue()), Math.abs(node.maxValue()));
+            final double slack = 64.0 * Math.ulp((float) Math.max(magnitude, 1.0));
+            return new Range(node.minValue() - slack, node.maxValue() + slack, nan[0]);
+        } else if (gnode instanceof Node.BlendDensity) {
+            // Blending mixes in the density of the old terrain
+            return Range.FULL;
+        } else if (gnode instanceof Node.Marker node) {
+            final Range wrapped = rangeOf(node.wrapped());
+            if (node.type() == DensityFunctions.Marker.Type.Interpolated) {
+                // interpolation lerps between the cached values, which can overflow or round past the bounds
+                return wrapped.withNaN(wrapped.nan() || Double.isInfinite(wrapped.max() - wrapped.min()))
+                        .widen(16);
+            }
+            return wrapped;
+        } else if (gnode instanceof Node.EndIslands node) {
+            return new Range(node.function().minValue(), node.function().maxValue(), false).widen(4);
+        } else if (gnode instanceof Node.OldBlendedNoise node) {
+            return new Range(node.function().minValue(), node.function().maxValue(), false).widen(4);
+        } else if (gnode instanceof Node.Shared node) {
+            return new RangeAnalysis().rangeOf(IrBuilder.build(node.value().wrapped()));
+        } else if (gnode instanceof Node.Opaque node) {
+            return opaque(node.function());
+        }
+        throw new IllegalStateException("Unknown node " + gnode);
+    }
+
+    public static boolean isInRange(Range input, double minInclusive, double maxExclusive) {
+        // NaN is never in range
+        return !input.nan() && input.min() >= minInclusive && input.max() < maxExclusive;
+    }
+
+    public static boolean isOutOfRange(Range input, double minInclusive, double maxExclusive) {
+        return input.max() < minInclusive || input.min() >= maxExclusive;
+    }
+
+    /** Mth.clamp */
+    static double clamp(double value, double min, double max) {
+        return value < min ? min : Math.min(value, max);
+    }
+
+    static double squeeze(double e) {
+        return e / 2.0 - e * e * e / 24.0;
+    }
+
+    private static Range mapped(Range input, DensityFunctions.Mapped.Type type) {
+        final double min = input.min();
+        final double max = input.max();
+        return switch (type) {
+            case ABS -> {
+                if (min >= 0.0) {
+                    yield input;
+                } else if (max <= 0.0) {
+                    yield new Range(-max, -min, input.nan());
+                }
+                yield new Range(0.0, Math.max(-min, max), input.nan());
+            }
+            case SQUARE -> {
+                if (min >= 0.0) {
+                    yield new Range(min * min, max * max, input.nan());
+                } else if (max <= 0.0) {
+                    yield new Range(max * max, min * min, input.nan());
+                }
+                yield new Range(0.0, Math.max(min * min, max * max), input.nan());
+            }
+            case CUBE -> new Range(min * min * min, max * max * max, input.nan());
+            case HALF_NEGATIVE -> new Range(
+                    min > 0.0 ? min : min * 0.5, max > 0.0 ? max : max * 0.5, input.nan());
+            case QUARTER_NEGATIVE -> new Range(
+                    min > 0.0 ? min : min * 0.25, max > 0.0 ? max : max * 0.25, input.nan());
+            case SQUEEZE -> {
+                final Range clamped = new Range(clamp(min, -1.0, 1.0), clamp(max, -1.0, 1.0), input.nan());
+                yield new Range(squeeze(clamped.min()), squeeze(clamped.max()), input.nan()).widen(2);
+            }
+        };
+    }
+
+    /** @return The largest magnitude of a coordinate multiplied by the scales, NaN or infinite if they are */
+    private static double scaledCoordinateBound(double xzScale, double yScale) {
+        return COORDINATE_BOUND * Math.max(Math.abs(xzScale), Math.abs(yScale));
+    }
+
+    private static double magnitude(Range range) {
+        return range.nan() ? Double.NaN : Math.max(Math.abs(range.min()), Math.abs(range.max()));
+    }
+
+    /** @param inputBound The largest magnitude of the coordinates the noise is sampled at */
+    private static Range noise(DensityFunction.NoiseHolder noise, double inputBound) {
+        final NormalNoise.NoiseParameters parameters = noise.noiseData().value();
+        // the second half of NormalNoise scales the input, and each octave doubles the frequency of the one before
+        final double frequency = DensityFunctionUtils.NORMAL_NOISE_INPUT_FACTOR
+                * Math.scalb(1.0, parameters.firstOctave() + parameters.amplitudes().size() - 1);
+        if (!(inputBound * frequency <= WRAP_BOUND)) {
+            return Range.FULL;
+        }
+        // NormalNoise bounds every octave by twice its amplitude, well above the largest value of ImprovedNoise
+        final double max = noise.maxValue();
+        return new Range(-max, max, false).widen(4);
+    }
+
+    /**
+     * NoiseChunk replaces the blending functions and the beardifier marker with functions of a different range, and the
+     * bounds of functions from other mods cannot be trusted. The bounds of the vanilla samplers are.
+     */
+    private static Range opaque(DensityFunction df) {
+        if (df instanceof DensityFunctions.ShiftNoise) {
+            return new Range(df.minValue(), df.maxValue(), false).widen(4);
+        }
+        return Range.FULL;
+    }
+}
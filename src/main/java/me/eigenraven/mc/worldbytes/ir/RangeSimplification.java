@@ -0,0 +1,60 @@
+package me.eigenraven.mc.worldbytes.ir;
+
+/**
+ * Uses the bounds of {@link RangeAnalysis} to drop clamps that never apply, to choose the branch of a RangeChoice whose
+ * input is always on one side, to decide MIN and MAX whose arguments do not overlap, and to tighten the bound MIN and
+ * MAX short-circuit on.
+ */
+public final class RangeSimplification implements Pass {
+    @Override
+    public String name() {
+        return "ranges";
+    }
+
+    @Override
+    public Node run(Node root) {
+        final RangeAnalysis analysis = new RangeAnalysis();
+        return root.transform(node -> simplify(node, analysis));
+    }
+
+    private static Node simplify(Node gnode, RangeAnalysis analysis) {
+        if (gnode instanceof Node.Clamp node) {
+            final Range input = analysis.rangeOf(node.input());
+            // NaN passes Mth.clamp unchanged, but min(+0.0, -0.0) is -0.0
+            final boolean negativeZeroMax = Double.doubleToRawLongBits(node.max()) == Long.MIN_VALUE;
+            if (input.within(node.min(), node.max()) && !(negativeZeroMax && input.max() >= 0.0)) {
+                return node.input();
+            }
+        } else if (gnode instanceof Node.RangeChoice node) {
+            final Range input = analysis.rangeOf(node.input());
+            if (RangeAnalysis.isOutOfRange(input, node.minInclusive(), node.maxExclusive())) {
+                return node.whenOutOfRange();
+            } else if (RangeAnalysis.isInRange(input, node.minInclusive(), node.maxExclusive())) {
+                return node.whenInRange();
+            }
+        } else if (gnode instanceof Node.Min node) {
+            final Range a = analysis.rangeOf(node.a());
+            final Range b = analysis.rangeOf(node.b());
+            if (!b.nan() && a.max() < b.min()) {
+                // a NaN a is returned either way
+                return node.a();
+            } else if (!a.nan() && b.max() < a.min() && a.min() >= node.bMin()) {
+                return node.b();
+            } else if (!b.nan() && b.min() > node.bMin()) {
+                // below the true minimum of b, min(a, b) is a
+                return new Node.Min(node.a(), node.b(), b.min());
+            }
+        } else if (gnode instanceof Node.Max node) {
+            final Range a = analysis.rangeOf(node.a());
+            final Range b = analysis.rangeOf(node.b());
+            if (!b.nan() && a.min() > b.max()) {
+                return node.a();
+            } else if (!a.nan() && b.min() > a.max() && a.max() <= node.bMax()) {
+                return node.b();
+            } else if (!b.nan() && b.max() < node.bMax()) {
+                return new Node.Max(node.a(), node.b(), b.max());
+            }
+        }
+        return gnode;
+    }
+}
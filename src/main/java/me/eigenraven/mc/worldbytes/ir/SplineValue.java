@@ -0,0 +1,61 @@
+package me.eigenraven.mc.worldbytes.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/** A CubicSpline over density function coordinates, evaluated in float precision like the vanilla spline */
+public sealed interface SplineValue {
+    /** @return This spline with every coordinate replaced by the mapper's result, or this spline if none changed */
+    SplineValue mapCoordinates(UnaryOperator<Node> mapper);
+
+    record Constant(float value) implements SplineValue {
+        @Override
+        public SplineValue mapCoordinates(UnaryOperator<Node> mapper) {
+            return this;
+        }
+    }
+
+    /** CubicSpline.Multipoint, the arrays are never modified and compare by content */
+    record Multipoint(Node coordinate, float[] locations, List<SplineValue> values, float[] derivatives)
+            implements SplineValue {
+        @Override
+        public SplineValue mapCoordinates(UnaryOperator<Node> mapper) {
+            final Node newCoordinate = mapper.apply(coordinate);
+            boolean changed = newCoordinate != coordinate;
+            final List<SplineValue> newValues = new ArrayList<>(values.size());
+            for (SplineValue value : values) {
+                final SplineValue newValue = value.mapCoordinates(mapper);
+                changed |= newValue != value;
+                newValues.add(newValue);
+            }
+            return changed ? new Multipoint(newCoordinate, locations, List.copyOf(newValues), derivatives) : this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            return o instanceof Multipoint that
+                    && coordinate.equals(that.coordinate)
+                    && Arrays.equals(locations, that.locations)
+                    && values.equals(that.values)
+                    && Arrays.equals(derivatives, that.derivatives);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = coordinate.hashCode();
+            result = 31 * result + Arrays.hashCode(locations);
+            result = 31 * result + values.hashCode();
+            result = 31 * result + Arrays.hashCode(derivatives);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "Multipoint[coordinate=" + coordinate + ", locations=" + Arrays.toString(locations) + ", values="
+                    + values + ", derivatives=" + Arrays.toString(derivatives) + "]";
+        }
+    }
+}
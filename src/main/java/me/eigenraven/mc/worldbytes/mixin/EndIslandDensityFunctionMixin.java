@@ -0,0 +1,24 @@
+package me.eigenraven.mc.worldbytes.mixin;
+
+import me.eigenraven.mc.worldbytes.EndIslands;
+import me.eigenraven.mc.worldbytes.EndIslandsAccess;
+import net.minecraft.world.level.levelgen.DensityFunctions;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+
+@Mixin(DensityFunctions.EndIslandDensityFunction.class)
+public class EndIslandDensityFunctionMixin implements EndIslandsAccess {
+    @Unique
+    private EndIslands worldbytes$endIslands;
+
+    @Override
+    public EndIslands worldbytes$getEndIslands() {
+        // the island noise never changes, racing threads build equal tables
+        EndIslands endIslands = worldbytes$endIslands;
+        if (endIslands == null) {
+            endIslands = EndIslands.create((DensityFunctions.EndIslandDensityFunction) (Object) this);
+            worldbytes$endIslands = endIslands;
+        }
+        return endIslands;
+    }
+}
@@ -0,0 +1,26 @@
+package me.eigenraven.mc.worldbytes.mixin;
+
+import me.eigenraven.mc.worldbytes.NoiseChunkCacheAccess;
+import net.minecraft.world.level.levelgen.DensityFunction;
+import net.minecraft.world.level.levelgen.NoiseChunk;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(targets = "net.minecraft.world.level.levelgen.NoiseChunk$FlatCache")
+public class NoiseChunkFlatCacheMixin implements NoiseChunkCacheAccess {
+    @Unique
+    private NoiseChunk worldbytes$owner;
+
+    @Inject(method = "<init>", at = @At("RETURN"))
+    private void worldbytes$captureOwner(NoiseChunk owner, DensityFunction noiseFiller, boolean fill, CallbackInfo ci) {
+        this.worldbytes$owner = owner;
+    }
+
+    @Override
+    public NoiseChunk worldbytes$getOwner() {
+        return worldbytes$owner;
+    }
+}
@@ -0,0 +1,20 @@
+package me.eigenraven.mc.worldbytes.mixin;
+
+import me.eigenraven.mc.worldbytes.SharedValue;
+import net.minecraft.world.level.levelgen.DensityFunction;
+import net.minecraft.world.level.levelgen.NoiseChunk;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(NoiseChunk.class)
+public class NoiseChunkMixin {
+    @Inject(method = "wrapNew", at = @At("HEAD"), cancellable = true)
+    private void worldbytes$wrapSharedValue(DensityFunction function, CallbackInfoReturnable<DensityFunction> cir) {
+        // like the markers, each chunk gets its own cache of the values shared between the router outputs
+        if (function instanceof SharedValue shared) {
+            cir.setReturnValue(shared.forNoiseChunk());
+        }
+    }
+}
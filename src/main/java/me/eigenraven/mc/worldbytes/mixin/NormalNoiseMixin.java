@@ -0,0 +1,24 @@
+package me.eigenraven.mc.worldbytes.mixin;
+
+import me.eigenraven.mc.worldbytes.FlatNoise;
+import me.eigenraven.mc.worldbytes.FlatNoiseAccess;
+import net.minecraft.world.level.levelgen.synth.NormalNoise;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+
+@Mixin(NormalNoise.class)
+public class NormalNoiseMixin implements FlatNoiseAccess {
+    @Unique
+    private FlatNoise worldbytes$flatNoise;
+
+    @Override
+    public FlatNoise worldbytes$getFlatNoise() {
+        // the octaves never change, racing threads build equal tables
+        FlatNoise flatNoise = worldbytes$flatNoise;
+        if (flatNoise == null) {
+            flatNoise = FlatNoise.create((NormalNoise) (Object) this);
+            worldbytes$flatNoise = flatNoise;
+        }
+        return flatNoise;
+    }
+}
@@ -2,17 +2,62 @@ package me.eigenraven.mc.worldbytes.tests;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import com.mojang.serialization.JsonOps;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import me.eigenraven.mc.worldbytes.CompilationCache;
+import me.eigenraven.mc.worldbytes.CompiledDensityFunction;
 import me.eigenraven.mc.worldbytes.DensityFunctionCompiler;
+import me.eigenraven.mc.worldbytes.DensityFunctionUtils;
+import me.eigenraven.mc.worldbytes.FlatNoise;
+import me.eigenraven.mc.worldbytes.RouterFusion;
+import me.eigenraven.mc.worldbytes.SharedValue;
+import me.eigenraven.mc.worldbytes.TieredDensityFunction;
+import me.eigenraven.mc.worldbytes.ir.ConstantFolding;
+import me.eigenraven.mc.worldbytes.ir.IrBuilder;
+import me.eigenraven.mc.worldbytes.ir.Node;
+import me.eigenraven.mc.worldbytes.ir.Pass;
+import me.eigenraven.mc.worldbytes.ir.PassManager;
+import me.eigenraven.mc.worldbytes.ir.RangeSimplification;
 import net.jqwik.api.Example;
 import net.jqwik.api.ForAll;
 import net.jqwik.api.Property;
+import net.jqwik.api.constraints.DoubleRange;
+import net.jqwik.api.constraints.IntRange;
 import net.minecraft.CrashReport;
 import net.minecraft.SharedConstants;
 import net.minecraft.core.Holder;
+import net.minecraft.core.HolderGetter;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.data.registries.VanillaRegistries;
 import net.minecraft.server.Bootstrap;
+import net.minecraft.util.CubicSpline;
+import net.minecraft.util.RandomSource;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.levelgen.Aquifer;
 import net.minecraft.world.level.levelgen.DensityFunction;
 import net.minecraft.world.level.levelgen.DensityFunctions;
+import net.minecraft.world.level.levelgen.NoiseChunk;
+import net.minecraft.world.level.levelgen.NoiseGeneratorSettings;
+import net.minecraft.world.level.levelgen.NoiseSettings;
+import net.minecraft.world.level.levelgen.RandomState;
+import net.minecraft.world.level.levelgen.blending.Blender;
+import net.minecraft.world.level.levelgen.synth.BlendedNoise;
+import net.minecraft.world.level.levelgen.synth.ImprovedNoise;
 import net.minecraft.world.level.levelgen.synth.NormalNoise;
+import org.junit.jupiter.api.Assertions;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
 
 public class CDFTests {
 
@@ -33,6 +78,9 @@ public class CDFTests {
         }
     };
 
+    private static final DensityFunction.ContextProvider dummyColumnProvider =
+            contextProvider(index -> new DensityFunction.SinglePointContext(13, index * 8 - 64, 17));
+
     static {
         synchronized (Bootstrap.class) {
             SharedConstants.tryDetectVersion();
@@ -43,9 +91,141 @@ public class CDFTests {
         }
     }
 
+    /** A low world of 4x8x4 cells, small enough to fill many chunks */
+    private static final NoiseSettings testNoiseSettings = NoiseSettings.create(-32, 64, 1, 2);
+
+    private static final HolderGetter<NormalNoise.NoiseParameters> noiseRegistry =
+            VanillaRegistries.createLookup().lookupOrThrow(Registries.NOISE);
+
+    private static DensityFunction.NoiseHolder noiseHolder(long seed, NormalNoise.NoiseParameters parameters) {
+        return new DensityFunction.NoiseHolder(
+                Holder.direct(parameters), NormalNoise.create(RandomSource.create(seed), parameters));
+    }
+
+    /** A NoiseChunk for the chunk at the given position, its own router is empty */
+    private static NoiseChunk testNoiseChunk(long seed, int chunkX, int chunkZ) {
+        final NoiseGeneratorSettings settings = NoiseGeneratorSettings.dummy();
+        final Aquifer.FluidStatus air = new Aquifer.FluidStatus(-64, Blocks.AIR.defaultBlockState());
+        return new NoiseChunk(
+                16 / testNoiseSettings.getCellWidth(),
+                RandomState.create(settings, noiseRegistry, seed),
+                chunkX * 16,
+                chunkZ * 16,
+                testNoiseSettings,
+                DensityFunctions.BeardifierMarker.INSTANCE,
+                settings,
+                (x, y, z) -> air,
+                Blender.empty());
+    }
+
+    /**
+     * Steps both chunks through the cell loop of NoiseBasedChunkGenerator.doFill in lockstep, and compares the wrapped
+     * functions at every block of the chunk
+     */
+    private static void assertSameChunkFill(
+            NoiseChunk vanillaChunk, DensityFunction vanilla, NoiseChunk compiledChunk, DensityFunction compiled) {
+        final int cellWidth = testNoiseSettings.getCellWidth();
+        final int cellHeight = testNoiseSettings.getCellHeight();
+        final int cellCountXZ = 16 / cellWidth;
+        final int cellCountY = testNoiseSettings.height() / cellHeight;
+        final int minCellY = testNoiseSettings.minY() / cellHeight;
+        final List<NoiseChunk> chunks = List.of(vanillaChunk, compiledChunk);
+        final int minBlockX = vanillaChunk.firstNoiseX * 4;
+        final int minBlockZ = vanillaChunk.firstNoiseZ * 4;
+        chunks.forEach(NoiseChunk::initializeForFirstCellX);
+        for (int cellX = 0; cellX < cellCountXZ; cellX++) {
+            for (NoiseChunk chunk : chunks) {
+                chunk.advanceCellX(cellX);
+            }
+            for (int cellZ = 0; cellZ < cellCountXZ; cellZ++) {
+                for (int cellY = cellCountY - 1; cellY >= 0; cellY--) {
+                    for (NoiseChunk chunk : chunks) {
+                        chunk.selectCellYZ(cellY, cellZ);
+                    }
+                    for (int y = cellHeight - 1; y >= 0; y--) {
+                        for (NoiseChunk chunk : chunks) {
+                            chunk.updateForY((minCellY + cellY) * cellHeight + y, (double) y / cellHeight);
+                        }
+                        for (int x = 0; x < cellWidth; x++) {
+                            for (NoiseChunk chunk : chunks) {
+                                chunk.updateForX(minBlockX + cellX * cellWidth + x, (double) x / cellWidth);
+                            }
+                            for (int z = 0; z < cellWidth; z++) {
+                                for (NoiseChunk chunk : chunks) {
+                                    chunk.updateForZ(minBlockZ + cellZ * cellWidth + z, (double) z / cellWidth);
+                                }
+                                assertEquals(vanilla.compute(vanillaChunk), compiled.compute(compiledChunk));
+                            }
+                        }
+                    }
+                }
+            }
+            chunks.forEach(NoiseChunk::swapSlices);
+        }
+        chunks.forEach(NoiseChunk::stopInterpolation);
+    }
+
+    private static DensityFunction.ContextProvider contextProvider(
+            IntFunction<DensityFunction.FunctionContext> contexts) {
+        return new DensityFunction.ContextProvider() {
+            @Override
+            public DensityFunction.FunctionContext forIndex(int index) {
+                return contexts.apply(index);
+            }
+
+            @Override
+            public void fillAllDirectly(double[] values, DensityFunction df) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = df.compute(forIndex(i));
+                }
+            }
+        };
+    }
+
+    /** @return The methods the generated class of a compiled function calls, as owner.name */
+    private static Set<String> calledMethods(DensityFunction compiled) {
+        final Set<String> methods = new HashSet<>();
+        new ClassReader(DensityFunctionCompiler.generatedClassBytes((CompiledDensityFunction) compiled))
+                .accept(
+                        new ClassVisitor(Opcodes.ASM9) {
+                            @Override
+                            public MethodVisitor visitMethod(
+                                    int access, String name, String descriptor, String signature, String[] exceptions) {
+                                return new MethodVisitor(Opcodes.ASM9) {
+                                    @Override
+                                    public void visitMethodInsn(
+                                            int opcode, String owner, String name, String descriptor, boolean itf) {
+                                        methods.add(owner + "." + name);
+                                    }
+                                };
+                            }
+                        },
+                        0);
+        return methods;
+    }
+
     private void testCompiledEquivalency(final DensityFunction vanilla) {
+        testCompiledEquivalency(vanilla, dummyColumnProvider, 48);
+    }
+
+    /**
+     * Compares the compiled function with vanilla at every context of the provider, and filling an array of the given
+     * length from it
+     * @return The compiled function
+     */
+    private DensityFunction testCompiledEquivalency(
+            final DensityFunction vanilla, final DensityFunction.ContextProvider provider, final int length) {
         final DensityFunction compiled = DensityFunctionCompiler.compile(vanilla);
         assertEquals(vanilla.compute(dummyContext), compiled.compute(dummyContext));
+        for (int i = 0; i < length; i++) {
+            assertEquals(vanilla.compute(provider.forIndex(i)), compiled.compute(provider.forIndex(i)));
+        }
+        final double[] vanillaValues = new double[length];
+        final double[] compiledValues = new double[length];
+        vanilla.fillArray(vanillaValues, provider);
+        compiled.fillArray(compiledValues, provider);
+        assertArrayEquals(vanillaValues, compiledValues);
+        return compiled;
     }
 
     @Property
@@ -165,6 +345,48 @@ public class CDFTests {
                 Holder.direct(new NormalNoise.NoiseParameters(1, amplitude, 0.5 * amplitude, 0.2 * amplitude))));
     }
 
+    @Property
+    public void testInstantiatedNoises(
+            @ForAll long seed, @ForAll @DoubleRange(min = -4.0, max = 4.0) double amplitude) {
+        final DensityFunction.NoiseHolder holder = noiseHolder(
+                seed, new NormalNoise.NoiseParameters(-3, amplitude, 0.0, 0.5 * amplitude, 0.2 * amplitude));
+        testCompiledEquivalency(DensityFunctions.add(
+                DensityFunctions.mul(new DensityFunctions.Noise(holder, 0.25, 0.5), DensityFunctions.constant(2.0)),
+                new DensityFunctions.ShiftedNoise(
+                        new DensityFunctions.Noise(holder, 1.0, 0.0),
+                        DensityFunctions.zero(),
+                        DensityFunctions.constant(amplitude),
+                        0.5,
+                        1.0,
+                        holder)));
+    }
+
+    @Property
+    public void testNestedSpline(
+            @ForAll @DoubleRange(min = -2.0, max = 2.0) double location,
+            @ForAll @DoubleRange(min = -4.0, max = 4.0) double derivative,
+            @ForAll float value) {
+        final DensityFunctions.Spline.Coordinate yCoordinate = new DensityFunctions.Spline.Coordinate(
+                Holder.direct(DensityFunctions.yClampedGradient(-64, 320, -1.0, 1.0)));
+        final DensityFunctions.Spline.Coordinate constantCoordinate =
+                new DensityFunctions.Spline.Coordinate(Holder.direct(DensityFunctions.constant(location)));
+        final CubicSpline<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate> inner =
+                CubicSpline.builder(constantCoordinate)
+                        .addPoint(-1.0F, value, (float) derivative)
+                        .addPoint(0.0F, 0.5F)
+                        .addPoint(1.0F, -value, 1.0F)
+                        .build();
+        final CubicSpline<DensityFunctions.Spline.Point, DensityFunctions.Spline.Coordinate> outer =
+                CubicSpline.builder(yCoordinate)
+                        .addPoint(-0.9F, inner, (float) -derivative)
+                        .addPoint(-0.5F, 1.0F, 0.25F)
+                        .addPoint(-0.49F, inner, 0.0F)
+                        .addPoint((float) location * 0.1F, 2.0F, (float) derivative)
+                        .addPoint(0.7F, inner, 2.0F)
+                        .build();
+        testCompiledEquivalency(DensityFunctions.spline(outer));
+    }
+
     @Property
     public void testShiftNoise(@ForAll double amplitude) {
         testCompiledEquivalency(DensityFunctions.shift(
@@ -254,4 +476,508 @@ public class CDFTests {
         testCompiledEquivalency(DensityFunctions.add(DensityFunctions.constant(a), DensityFunctions.constant(a))
                 .clamp(min, max));
     }
+
+    @Property
+    public void testUnmappedMarkers(@ForAll double a, @ForAll double b) {
+        final DensityFunction gradient = DensityFunctions.yClampedGradient(-64, 320, a, b);
+        final DensityFunction vanilla = DensityFunctions.add(
+                DensityFunctions.cacheAllInCell(DensityFunctions.mul(
+                        DensityFunctions.interpolated(gradient),
+                        DensityFunctions.flatCache(DensityFunctions.constant(a)))),
+                DensityFunctions.min(
+                        DensityFunctions.cacheOnce(gradient), DensityFunctions.cache2d(DensityFunctions.constant(b))));
+        testCompiledEquivalency(vanilla);
+        testCompiledEquivalency(DensityFunctionCompiler.compile(vanilla).mapAll(df -> df));
+    }
+
+    @Property(tries = 20)
+    public void testLoweredMarkers(
+            @ForAll long seed,
+            @ForAll @IntRange(min = -100000, max = 100000) int chunkX,
+            @ForAll @IntRange(min = -100000, max = 100000) int chunkZ) throws IllegalAccessException {
+        final DensityFunction.NoiseHolder holder = noiseHolder(seed, new NormalNoise.NoiseParameters(-4, 1.0, 0.5));
+        final DensityFunction flat = new DensityFunctions.Noise(holder, 0.5, 0.0);
+        // the cache is read point by point, and as the arrays the interpolator and the cell cache fill
+        final DensityFunction once = DensityFunctions.cacheOnce(
+                DensityFunctions.add(new DensityFunctions.Noise(holder, 1.0, 1.0), DensityFunctions.flatCache(flat)));
+        final DensityFunction vanilla = DensityFunctions.add(
+                DensityFunctions.interpolated(DensityFunctions.mul(once, DensityFunctions.cache2d(flat))),
+                DensityFunctions.add(DensityFunctions.cacheAllInCell(once), once));
+        final NoiseChunk vanillaChunk = testNoiseChunk(seed, chunkX, chunkZ);
+        final NoiseChunk compiledChunk = testNoiseChunk(seed, chunkX, chunkZ);
+        final DensityFunction compiled = DensityFunctionCompiler.compile(vanilla).mapAll(compiledChunk::wrap);
+        int markers = 0;
+        for (Field field : compiled.getClass().getFields()) {
+            if (field.getName().startsWith("markerMode")) {
+                assertEquals(DensityFunctionUtils.MARKER_LOWERED, field.getInt(compiled), field.getName());
+                markers++;
+            }
+        }
+        assertEquals(DensityFunctions.Marker.Type.values().length, markers);
+        assertSameChunkFill(vanillaChunk, vanilla.mapAll(vanillaChunk::wrap), compiledChunk, compiled);
+    }
+
+    @Property
+    public void testSameShapeSharesClass(@ForAll long seedA, @ForAll long seedB) {
+        final NormalNoise.NoiseParameters parameters = new NormalNoise.NoiseParameters(-4, 1.0, 0.5, 0.25);
+        final DensityFunction[] vanilla = new DensityFunction[2];
+        final long[] seeds = {seedA, seedB};
+        for (int i = 0; i < seeds.length; i++) {
+            final DensityFunction.NoiseHolder holder = noiseHolder(seeds[i], parameters);
+            vanilla[i] = DensityFunctions.add(
+                    DensityFunctions.mul(
+                            new DensityFunctions.Noise(holder, 0.25, 0.5),
+                            DensityFunctions.yClampedGradient(-64, 320, -1.0, 1.0)),
+                    new DensityFunctions.ShiftA(holder));
+            testCompiledEquivalency(vanilla[i]);
+        }
+        assertSame(
+                DensityFunctionCompiler.compile(vanilla[0]).getClass(),
+                DensityFunctionCompiler.compile(vanilla[1]).getClass());
+    }
+
+    @Example
+    public void testCompilationCache() {
+        final DensityFunction a = DensityFunctions.add(
+                DensityFunctions.yClampedGradient(-64, 320, -1.0, 1.0),
+                DensityFunctions.mul(
+                        DensityFunctions.constant(2.0), DensityFunctions.yClampedGradient(0, 64, 0.0, 1.0)));
+        final DensityFunction b = DensityFunctions.mul(a, a);
+        final CompilationCache cache = new CompilationCache(1);
+        final DensityFunction compiledA = DensityFunctionCompiler.compile(a, cache);
+        assertSame(compiledA, DensityFunctionCompiler.compile(a, cache));
+        assertEquals(1, cache.hits());
+        DensityFunctionCompiler.compile(b, cache);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNotSame(compiledA, DensityFunctionCompiler.compile(a, cache));
+    }
+
+    @Example
+    public void testTieredSwapsInCompiled() throws InterruptedException {
+        final DensityFunction vanilla = DensityFunctions.add(
+                DensityFunctions.yClampedGradient(-64, 320, -1.0, 3.0),
+                DensityFunctions.mul(
+                        DensityFunctions.constant(2.0), DensityFunctions.yClampedGradient(0, 64, 0.0, 1.0)));
+        final TieredDensityFunction tiered = new TieredDensityFunction(vanilla, DensityFunctionCompiler::compile);
+        final DensityFunction mapped = tiered.mapAll(df -> df);
+        final long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!tiered.isCompiled() && System.nanoTime() < deadline) {
+            assertEquals(vanilla.compute(dummyContext), mapped.compute(dummyContext));
+            Thread.sleep(1);
+        }
+        assertTrue(tiered.isCompiled());
+        assertEquals(vanilla.compute(dummyContext), tiered.compute(dummyContext));
+        assertInstanceOf(CompiledDensityFunction.class, tiered.mapAll(df -> df));
+    }
+
+    @Example
+    public void testConcurrentCompilationsAreDeduplicated() {
+        final DensityFunction vanilla = DensityFunctions.add(
+                DensityFunctions.yClampedGradient(-64, 320, -1.0, 4.0),
+                DensityFunctions.mul(
+                        DensityFunctions.cacheOnce(DensityFunctions.yClampedGradient(0, 64, 0.0, 1.0)),
+                        DensityFunctions.yClampedGradient(-32, 32, 1.0, 0.0)));
+        final CompilationCache cache = new CompilationCache();
+        final List<DensityFunction> compiled = IntStream.range(0, 16)
+                .parallel()
+                .mapToObj(i -> DensityFunctionCompiler.compile(vanilla, cache))
+                .toList();
+        for (DensityFunction fn : compiled) {
+            assertSame(compiled.get(0), fn);
+        }
+        // every subtree is compiled exactly once, as if the calls had been sequential
+        final CompilationCache sequentialCache = new CompilationCache();
+        DensityFunctionCompiler.compile(vanilla, sequentialCache);
+        assertEquals(sequentialCache.misses(), cache.misses());
+        testCompiledEquivalency(vanilla);
+    }
+
+    @Property
+    public void testRouterFusionSharesSubtrees(@ForAll long seed) {
+        final DensityFunction.NoiseHolder holder = noiseHolder(seed, new NormalNoise.NoiseParameters(-5, 1.0, 0.5));
+        final DensityFunction continents = DensityFunctions.add(
+                new DensityFunctions.Noise(holder, 0.25, 0.0), new DensityFunctions.Noise(holder, 1.0, 0.0));
+        final List<DensityFunction> vanilla = List.of(
+                continents,
+                DensityFunctions.mul(continents, DensityFunctions.yClampedGradient(-64, 320, 1.0, -1.0)),
+                DensityFunctions.add(continents, DensityFunctions.constant(0.5)));
+        final List<DensityFunction> fused = RouterFusion.shareCommonSubtrees(vanilla);
+        final SharedValue shared = assertInstanceOf(SharedValue.class, fused.get(0));
+        assertSame(shared, ((DensityFunctions.Ap2) fused.get(1)).argument1());
+        assertSame(shared, ((DensityFunctions.MulOrAdd) fused.get(2)).input());
+        // mapping keeps the single instance, and a NoiseChunk wraps it into one cache of its own
+        assertSame(shared, fused.get(0).mapAll(df -> df));
+        assertSame(shared, ((DensityFunctions.Ap2) fused.get(1).mapAll(df -> df)).argument1());
+        final NoiseChunk chunk = testNoiseChunk(seed, 0, 0);
+        final DensityFunction chunkShared = fused.get(0).mapAll(chunk::wrap);
+        assertInstanceOf(SharedValue.ChunkLocal.class, chunkShared);
+        assertSame(chunkShared, ((DensityFunctions.Ap2) fused.get(1).mapAll(chunk::wrap)).argument1());
+        // encoded as the marker it behaves like
+        assertEquals(
+                DensityFunction.DIRECT_CODEC
+                        .encodeStart(JsonOps.INSTANCE, DensityFunctions.cacheOnce(continents))
+                        .getOrThrow(false, Assertions::fail),
+                DensityFunction.DIRECT_CODEC.encodeStart(JsonOps.INSTANCE, shared).getOrThrow(false, Assertions::fail));
+        for (int i = 0; i < vanilla.size(); i++) {
+            assertEquals(vanilla.get(i).compute(dummyContext), fused.get(i).compute(dummyContext));
+            assertEquals(
+                    vanilla.get(i).compute(dummyContext),
+                    DensityFunctionCompiler.compile(fused.get(i)).compute(dummyContext));
+            assertEquals(
+                    vanilla.get(i).compute(dummyContext),
+                    fused.get(i).mapAll(chunk::wrap).compute(dummyContext));
+        }
+    }
+
+    @Property
+    public void testIrPassPipeline(@ForAll @DoubleRange(min = -1.0, max = 1.0) double a) {
+        final Node ir = IrBuilder.build(
+                new DensityFunctions.HolderHolder(Holder.direct(DensityFunctions.constant(a))).clamp(-1.0, 1.0));
+        assertEquals(new Node.Clamp(new Node.Const(a), -1.0, 1.0), ir);
+        final Pass foldClamp = new Pass() {
+            @Override
+            public String name() {
+                return "foldClamp";
+            }
+
+            @Override
+            public Node run(Node root) {
+                return root.transform(node -> node instanceof Node.Clamp clamp
+                                && clamp.input() instanceof Node.Const c
+                                && c.value() >= clamp.min()
+                                && c.value() <= clamp.max()
+                        ? c
+                        : node);
+            }
+        };
+        assertEquals(new Node.Const(a), new PassManager(List.of(foldClamp)).run(ir));
+        assertSame(ir, new PassManager(List.of()).run(ir));
+        assertSame(ir, ir.transform(node -> node));
+    }
+
+    @Property
+    public void testRangeSimplification(@ForAll @DoubleRange(min = -10.0, max = 10.0) double a) {
+        final DensityFunction gradient = DensityFunctions.yClampedGradient(0, 100, -0.5, 0.5);
+        final DensityFunction vanilla = DensityFunctions.rangeChoice(
+                gradient.clamp(-2.0, 2.0),
+                -1.0,
+                1.0,
+                DensityFunctions.add(gradient.squeeze(), gradient).abs(),
+                DensityFunctions.constant(a));
+        // the gradient never leaves [-1, 1], so neither the clamps nor the choice apply
+        final Node.YClampedGradient gradientNode = new Node.YClampedGradient(0, 100, -0.5, 0.5);
+        assertEquals(
+                new Node.Mapped(
+                        new Node.Add(new Node.Squeeze(gradientNode), gradientNode), DensityFunctions.Mapped.Type.ABS),
+                new RangeSimplification().run(IrBuilder.build(vanilla)));
+        testCompiledEquivalency(vanilla);
+        final DensityFunction compiled = DensityFunctionCompiler.compile(vanilla);
+        assertTrue(compiled.minValue() >= vanilla.minValue());
+        assertTrue(compiled.maxValue() <= vanilla.maxValue());
+        assertTrue(compiled.maxValue() < 1.0);
+    }
+
+    @Property
+    public void testConstantFolding(@ForAll double a, @ForAll double b) {
+        final DensityFunction constA = new DensityFunctions.HolderHolder(Holder.direct(DensityFunctions.constant(a)));
+        final DensityFunction constB = new DensityFunctions.HolderHolder(Holder.direct(DensityFunctions.constant(b)));
+        final DensityFunction vanilla = DensityFunctions.min(
+                DensityFunctions.mul(constA, constB).abs(),
+                DensityFunctions.add(constA, constB).clamp(-1.0, 1.0));
+        assertEquals(
+                new Node.Const(vanilla.compute(dummyContext)), new ConstantFolding().run(IrBuilder.build(vanilla)));
+    }
+
+    @Example
+    public void testAlgebraicSimplification() {
+        final Node gradient = new Node.YClampedGradient(0, 100, -1.0, 1.0);
+        final ConstantFolding fold = new ConstantFolding();
+        assertEquals(gradient, fold.run(new Node.MulConst(gradient, 1.0)));
+        assertEquals(gradient, fold.run(new Node.AddConst(gradient, -0.0)));
+        assertEquals(
+                new Node.MulConst(gradient, 8.0), fold.run(new Node.MulConst(new Node.MulConst(gradient, 2.0), 4.0)));
+        assertEquals(new Node.Const(0.0), fold.run(new Node.Mul(new Node.Const(-0.0), gradient)));
+        // the gradient can be -0.0, which adding +0.0 turns into +0.0
+        final Node addZero = new Node.AddConst(gradient, 0.0);
+        assertSame(addZero, fold.run(addZero));
+        // x * 0.1 * 3.0 rounds differently from x * (0.1 * 3.0)
+        final Node inexact = new Node.MulConst(new Node.MulConst(gradient, 0.1), 3.0);
+        assertSame(inexact, fold.run(inexact));
+    }
+
+    @Property
+    public void testCommonSubexpressions(
+            @ForAll long seed, @ForAll @DoubleRange(min = -1.0, max = 1.0) double threshold) {
+        final DensityFunction.NoiseHolder holder = noiseHolder(seed, new NormalNoise.NoiseParameters(-3, 1.0, 0.5));
+        // equal but not identical, like the shifts of vanilla routers
+        final DensityFunction shiftX = new DensityFunctions.Noise(holder, 1.0, 0.0);
+        final DensityFunction shiftZ = new DensityFunctions.Noise(holder, 1.0, 0.0);
+        final DensityFunction shifted = new DensityFunctions.ShiftedNoise(
+                shiftX, DensityFunctions.zero(), shiftZ, 0.5, 1.0, holder);
+        // repeated in the input and both branches, and in branches that are never both evaluated
+        testCompiledEquivalency(DensityFunctions.rangeChoice(
+                shiftX,
+                threshold,
+                10.0,
+                DensityFunctions.add(shifted, new DensityFunctions.ShiftedNoise(
+                        shiftZ, DensityFunctions.zero(), shiftX, 0.25, 0.0, holder)),
+                DensityFunctions.mul(shiftZ, shifted)));
+    }
+
+    @Property
+    public void testColumnHoisting(@ForAll long seed) {
+        final DensityFunction.NoiseHolder holder = noiseHolder(seed, new NormalNoise.NoiseParameters(-3, 1.0, 0.5));
+        final DensityFunction flat =
+                DensityFunctions.add(new DensityFunctions.Noise(holder, 0.25, 0.0), DensityFunctions.constant(0.1));
+        final DensityFunction vanilla = DensityFunctions.rangeChoice(
+                DensityFunctions.yClampedGradient(-64, 320, -1.0, 1.0),
+                -0.2,
+                0.3,
+                DensityFunctions.mul(flat, new DensityFunctions.Noise(holder, 1.0, 1.0)),
+                new DensityFunctions.ShiftedNoise(flat, DensityFunctions.zero(), flat, 0.5, 0.0, holder));
+        // runs of cells in three columns, coming back to each column
+        final DensityFunction.ContextProvider provider = contextProvider(index -> {
+            final int column = (index / 7) % 3;
+            return new DensityFunction.SinglePointContext(column * 5, (index % 7) * 40 - 64, column == 1 ? 9 : 0);
+        });
+        testCompiledEquivalency(vanilla, provider, 60);
+    }
+
+    @Property
+    public void testMethodSplitting(@ForAll long seed, @ForAll @IntRange(min = -64, max = 320) int y) {
+        final DensityFunction.NoiseHolder holder =
+                noiseHolder(seed, new NormalNoise.NoiseParameters(-7, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0));
+        // the inlined octaves of all the noises are far above the size limit of a single method
+        DensityFunction vanilla = new DensityFunctions.Noise(holder, 1.0, 1.0);
+        for (int i = 1; i < 24; i++) {
+            final DensityFunction noise = new DensityFunctions.Noise(holder, 1.0 / (i + 1), 0.5 * i);
+            vanilla = i % 3 == 0 ? DensityFunctions.mul(vanilla, noise) : DensityFunctions.add(vanilla, noise);
+        }
+        final DensityFunction.ContextProvider provider =
+                contextProvider(index -> new DensityFunction.SinglePointContext(index * 9, y, 3 - index * 9));
+        final DensityFunction compiled = testCompiledEquivalency(vanilla, provider, 8);
+        final Map<String, Integer> codeSizes = new HashMap<>();
+        new ClassReader(DensityFunctionCompiler.generatedClassBytes((CompiledDensityFunction) compiled))
+                .accept(
+                        new ClassVisitor(Opcodes.ASM9) {
+                            @Override
+                            public MethodVisitor visitMethod(
+                                    int access, String name, String descriptor, String signature, String[] exceptions) {
+                                return new CodeSizeEvaluator(Opcodes.ASM9, null) {
+                                    @Override
+                                    public void visitEnd() {
+                                        codeSizes.put(name, getMaxSize());
+                                    }
+                                };
+                            }
+                        },
+                        0);
+        // compute and fillArray both moved parts of the tree into methods of their own
+        assertTrue(codeSizes.keySet().stream().anyMatch(name -> name.matches("part\\d+")), codeSizes::toString);
+        assertTrue(codeSizes.keySet().stream().anyMatch(name -> name.matches("partArray\\d+")), codeSizes::toString);
+        final int methodSizeLimit = Integer.getInteger("worldbytes.compiler.methodSizeLimit", 5000);
+        codeSizes.forEach((name, size) -> assertTrue(size <= methodSizeLimit, name + " has " + size + " bytes"));
+    }
+
+    @Property
+    public void testCoordinateReads(
+            @ForAll long seed,
+            @ForAll @IntRange(min = -30000000, max = 30000000) int x,
+            @ForAll @IntRange(min = -64, max = 320) int y,
+            @ForAll @IntRange(min = -30000000, max = 30000000) int z) {
+        final DensityFunction.NoiseHolder holder =
+                noiseHolder(seed, new NormalNoise.NoiseParameters(-4, 1.0, 0.5, 0.25));
+        // every noise and the gradient read the coordinates of the same context
+        final DensityFunction vanilla = DensityFunctions.add(
+                DensityFunctions.mul(
+                        new DensityFunctions.Noise(holder, 0.5, 0.25),
+                        DensityFunctions.yClampedGradient(-64, 320, 1.0, -1.0)),
+                new DensityFunctions.ShiftedNoise(
+                        new DensityFunctions.Noise(holder, 1.0, 0.0),
+                        DensityFunctions.zero(),
+                        DensityFunctions.constant(2.0),
+                        0.25,
+                        0.5,
+                        holder));
+        final DensityFunction.ContextProvider provider =
+                contextProvider(index -> new DensityFunction.SinglePointContext(x + index, y, z - index));
+        final CompiledDensityFunction compiled =
+                (CompiledDensityFunction) testCompiledEquivalency(vanilla, provider, 4);
+        assertEquals(vanilla.compute(new DensityFunction.SinglePointContext(x, y, z)), compiled.computeAt(x, y, z));
+    }
+
+    @Property
+    public void testVectorFillArray(
+            @ForAll long seed,
+            @ForAll @IntRange(min = -64, max = 256) int y,
+            @ForAll @IntRange(min = 1, max = 64) int length) {
+        final DensityFunction.NoiseHolder holder = noiseHolder(seed, new NormalNoise.NoiseParameters(-6, 1.0, 0.5));
+        final DensityFunction gradient = DensityFunctions.yClampedGradient(-64, 320, 1.0, -1.0);
+        final DensityFunction noise = new DensityFunctions.Noise(holder, 1.0, 0.5);
+        // lane-wise arithmetic over the noise and gradient arrays, the lengths also leave a scalar tail
+        final DensityFunction vanilla = DensityFunctions.add(
+                DensityFunctions.rangeChoice(
+                        gradient, -0.5, 0.5, DensityFunctions.constant(0.25), DensityFunctions.constant(-0.25)),
+                DensityFunctions.max(
+                                DensityFunctions.add(
+                                        DensityFunctions.mul(noise.squeeze(), DensityFunctions.constant(1.5)),
+                                        gradient.quarterNegative()),
+                                DensityFunctions.min(noise.abs().square(), gradient.halfNegative().cube()))
+                        .clamp(-0.75, 0.75));
+        final DensityFunction.ContextProvider provider =
+                contextProvider(index -> new DensityFunction.SinglePointContext(index * 3, y + index, -5 * index));
+        final DensityFunction compiled = testCompiledEquivalency(vanilla, provider, length);
+        // the vectorTest task runs the tests with the Vector API
+        assertEquals(
+                Boolean.getBoolean("worldbytes.compiler.vectorize"),
+                calledMethods(compiled).stream().anyMatch(method -> method.startsWith("jdk/incubator/vector/")));
+    }
+
+    @Property
+    public void testBatchedNoise(@ForAll long seed, @ForAll @IntRange(min = -64, max = 320) int y) {
+        final DensityFunction.NoiseHolder holder =
+                noiseHolder(seed, new NormalNoise.NoiseParameters(-5, 1.0, 0.0, 0.5, 0.25));
+        final DensityFunction vanilla = new DensityFunctions.ShiftedNoise(
+                new DensityFunctions.Noise(holder, 0.5, 0.0),
+                DensityFunctions.yClampedGradient(-64, 320, -4.0, 4.0),
+                DensityFunctions.constant(3.0),
+                0.25,
+                0.5,
+                holder);
+        final DensityFunction.ContextProvider provider =
+                contextProvider(index -> new DensityFunction.SinglePointContext(index % 5, y + index, index / 5));
+        testCompiledEquivalency(vanilla, provider, 37);
+    }
+
+    @Property
+    public void testBatchedNestedNoises(@ForAll long seed, @ForAll @IntRange(min = -64, max = 256) int y) {
+        final DensityFunction.NoiseHolder holder = noiseHolder(seed, new NormalNoise.NoiseParameters(-5, 1.0, 0.5));
+        // like the cave noises of the final density, only the operands evaluated for every index are batched
+        final DensityFunction vanilla = DensityFunctions.add(
+                DensityFunctions.max(
+                        DensityFunctions.mul(
+                                new DensityFunctions.Noise(holder, 1.0, 0.5).abs(),
+                                DensityFunctions.yClampedGradient(-64, 320, 1.0, -1.0)),
+                        new DensityFunctions.Noise(holder, 0.5, 2.0)),
+                new DensityFunctions.ShiftedNoise(
+                        new DensityFunctions.Noise(holder, 0.25, 0.0),
+                        DensityFunctions.zero(),
+                        DensityFunctions.constant(3.0),
+                        0.5,
+                        0.75,
+                        holder));
+        final DensityFunction.ContextProvider provider =
+                contextProvider(index -> new DensityFunction.SinglePointContext(index / 8, y + index % 8, 5));
+        final DensityFunction compiled = testCompiledEquivalency(vanilla, provider, 32);
+        final String kernel = Type.getInternalName(DensityFunctionUtils.class) + ".fillNoiseValues";
+        assertTrue(calledMethods(compiled).contains(kernel));
+    }
+
+    @Property
+    public void testFlatNoise(
+            @ForAll long seed,
+            @ForAll @DoubleRange(min = -1.0e6, max = 1.0e6) double x,
+            @ForAll @DoubleRange(min = -1.0e3, max = 1.0e3) double y,
+            @ForAll @DoubleRange(min = -1.0e6, max = 1.0e6) double z) {
+        final DensityFunction.NoiseHolder holder =
+                noiseHolder(seed, new NormalNoise.NoiseParameters(-4, 1.0, 0.0, 2.0, 1.0));
+        final NormalNoise noise = holder.noise();
+        final FlatNoise flatNoise = FlatNoise.of(noise);
+        for (int i = 0; i < noise.first.noiseLevels.length; i++) {
+            final ImprovedNoise octave = noise.first.noiseLevels[i];
+            if (octave != null) {
+                assertEquals(octave.noise(x, y, z), flatNoise.sample(FlatNoise.index(noise, 0, i), x, y, z));
+            }
+        }
+        // the compiled code samples the flattened octaves in compute and in the batched fillArray
+        final DensityFunction vanilla = DensityFunctions.add(
+                DensityFunctions.mul(
+                        new DensityFunctions.Noise(holder, 1.0, 1.0),
+                        DensityFunctions.yClampedGradient(-64, 320, 1.0, -1.0)),
+                new DensityFunctions.Noise(holder, 0.5, 0.0));
+        final DensityFunction.ContextProvider provider = contextProvider(
+                index -> new DensityFunction.SinglePointContext((int) x + index % 4, (int) y + index / 4, (int) z));
+        assertInstanceOf(CompiledDensityFunction.class, testCompiledEquivalency(vanilla, provider, 16));
+    }
+
+    @Property
+    public void testEndIslandsLowering(
+            @ForAll long seed,
+            @ForAll @IntRange(min = -30000000, max = 30000000) int x,
+            @ForAll @IntRange(min = -30000000, max = 30000000) int z) {
+        // the arithmetic keeps the islands from being too simple to compile
+        final DensityFunction vanilla = DensityFunctions.add(
+                        DensityFunctions.mul(DensityFunctions.endIslands(seed), DensityFunctions.constant(0.5)),
+                        DensityFunctions.yClampedGradient(0, 128, -1.0, 1.0))
+                .abs();
+        // the outer islands start 1024 blocks from the center, and past about 370000 blocks the squared distance of
+        // vanilla overflows, so some columns are scaled down into the islands. The columns are four cells high.
+        final DensityFunction.ContextProvider provider = contextProvider(index -> {
+            final int column = index / 4;
+            final int blockY = index % 4 * 8;
+            if (column < 6) {
+                return new DensityFunction.SinglePointContext(column * 560 - 1400, blockY, 300 - column * 90);
+            } else if (column < 12) {
+                return new DensityFunction.SinglePointContext(x / 100 + column * 7, blockY, z / 100 - column * 5);
+            }
+            return new DensityFunction.SinglePointContext(x + column * 7, blockY, z - column * 5);
+        });
+        final DensityFunction compiled = testCompiledEquivalency(vanilla, provider, 64);
+        assertInstanceOf(CompiledDensityFunction.class, compiled);
+        // the compiled code falls back to calling a function mapAll replaced
+        final DensityFunction.Visitor replace = df -> df instanceof DensityFunctions.EndIslandDensityFunction
+                ? DensityFunctions.constant(0.25)
+                : df;
+        for (int i = 0; i < 64; i++) {
+            assertEquals(
+                    vanilla.mapAll(replace).compute(provider.forIndex(i)),
+                    compiled.mapAll(replace).compute(provider.forIndex(i)));
+        }
+    }
+
+    @Property
+    public void testWeirdScaledSampler(
+            @ForAll long seed,
+            @ForAll DensityFunctions.WeirdScaledSampler.RarityValueMapper rarityValueMapper,
+            @ForAll @IntRange(min = -64, max = 320) int y) {
+        final DensityFunction.NoiseHolder holder = noiseHolder(seed, new NormalNoise.NoiseParameters(-7, 1.0, 1.0));
+        // the gradient crosses every rarity threshold, the arithmetic around the sampler keeps it from being too simple
+        final DensityFunction sampler = new DensityFunctions.WeirdScaledSampler(
+                DensityFunctions.yClampedGradient(-64, 320, -1.0, 1.0), holder, rarityValueMapper);
+        final DensityFunction vanilla = DensityFunctions.add(
+                        DensityFunctions.mul(sampler, DensityFunctions.constant(0.5)), DensityFunctions.constant(0.25))
+                .abs();
+        final DensityFunction.ContextProvider provider =
+                contextProvider(index -> new DensityFunction.SinglePointContext(index * 13, y, index * -11));
+        testCompiledEquivalency(vanilla, provider, 16);
+        testCompiledEquivalency(vanilla);
+    }
+
+    @Property
+    public void testOldBlendedNoise(
+            @ForAll long seed,
+            @ForAll @IntRange(min = -30000000, max = 30000000) int x,
+            @ForAll @IntRange(min = -64, max = 320) int y,
+            @ForAll @IntRange(min = -30000000, max = 30000000) int z) {
+        // the overworld and nether parameters
+        for (BlendedNoise noise : List.of(
+                new BlendedNoise(RandomSource.create(seed), 0.25, 0.125, 80.0, 160.0, 8.0),
+                new BlendedNoise(RandomSource.create(seed), 0.25, 0.375, 80.0, 60.0, 8.0))) {
+            final DensityFunction vanilla = DensityFunctions.add(
+                            DensityFunctions.mul(noise, DensityFunctions.constant(0.5)),
+                            DensityFunctions.yClampedGradient(-64, 320, -1.0, 1.0))
+                    .abs();
+            // four columns of four cells, the unrolled octaves are sampled in compute and in fillArray
+            final DensityFunction.ContextProvider provider = contextProvider(index ->
+                    new DensityFunction.SinglePointContext(x + index / 4 * 3, y + index % 4 * 4, z - index / 4 * 5));
+            final DensityFunction compiled = testCompiledEquivalency(vanilla, provider, 16);
+            assertInstanceOf(CompiledDensityFunction.class, compiled);
+            // the compiled code falls back to calling a function mapAll replaced
+            final DensityFunction.Visitor replace =
+                    df -> df instanceof BlendedNoise ? DensityFunctions.constant(1.0) : df;
+            final DensityFunction.FunctionContext ctx = new DensityFunction.SinglePointContext(x, y, z);
+            assertEquals(vanilla.mapAll(replace).compute(ctx), compiled.mapAll(replace).compute(ctx));
+        }
+    }
 }